@@ -0,0 +1,561 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.text.DateFormat;
+import java.util.*;
+
+/**
+ * Static content held in memory and keyed by host and path. Small files are
+ * read into direct buffers and large files are memory mapped, both with the
+ * MIME type and response headers prepared once. The least recently used
+ * files are evicted when the memory limit is reached.<br>
+ * <br>
+ * It also remembers where a host and path was found on disk, or that it 
+ * wasn't, as long as the app folder can be watched for changes.<br>
+ * <br>
+ * Entries are kept per file, so hosts that link the same deduplicated blob 
+ * share one copy.
+ *
+ * @author marc
+ */
+public class Cache {
+	/*
+	 * Files larger than this are mapped instead of read.
+	 */
+	static int SMALL = 65536;
+
+	/*
+	 * How often the file is checked for changes in milliseconds.
+	 */
+	static int CHECK = 1000;
+
+	/*
+	 * How many resolved paths to remember.
+	 */
+	static int PATHS = 65536;
+
+	/**
+	 * Resolved to nothing.
+	 */
+	static File NONE = new File("");
+
+	private HashMap keys, prints;
+	private LinkedHashMap files, paths;
+	private long limit, bytes, hit, miss;
+	private boolean watch;
+
+	protected Cache(long limit) {
+		this.limit = limit;
+
+		keys = new HashMap();
+		prints = new HashMap();
+		files = new LinkedHashMap(16, 0.75f, true);
+		paths = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > PATHS;
+			}
+		};
+	}
+
+	/**
+	 * Starts watching the folder, paths are only remembered if this succeeds.
+	 * @param root
+	 */
+	protected void watch(File root) {
+		if(!root.isDirectory()) {
+			return;
+		}
+
+		try {
+			Thread thread = new Thread(new Watch(this, root.toPath()), "watch");
+			thread.setDaemon(true);
+			thread.start();
+			watch = true;
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param host
+	 * @param path
+	 * @return the resolved file, {@link #NONE} or null if unknown.
+	 */
+	protected synchronized File file(String host, String path) {
+		if(!watch) {
+			return null;
+		}
+
+		return (File) paths.get(host + path);
+	}
+
+	protected synchronized void file(String host, String path, File file) {
+		if(watch) {
+			paths.put(host + path, file);
+		}
+	}
+
+	/**
+	 * Forgets all resolved paths, after deploys and file creation or deletion.
+	 */
+	protected synchronized void clear() {
+		paths.clear();
+	}
+
+	/**
+	 * Remembers the content hash of a deployed file.
+	 * @param file
+	 * @param hash
+	 */
+	protected synchronized void hash(File file, String hash) {
+		prints.put(file.getPath(), new Print(hash, file.lastModified(), file.length()));
+	}
+
+	/**
+	 * @param file
+	 * @return the content hash or null if the file was not deployed or 
+	 * has changed since.
+	 */
+	protected synchronized String hash(File file) {
+		Print print = (Print) prints.get(file.getPath());
+
+		if(print == null) {
+			return null;
+		}
+
+		if(print.date != file.lastModified() || print.length != file.length()) {
+			prints.remove(file.getPath());
+			return null;
+		}
+
+		return print.hash;
+	}
+
+	/**
+	 * @param host
+	 * @param path
+	 * @return the entry or null if the file has to be resolved.
+	 */
+	protected Entry get(String host, String path) {
+		if(limit == 0) {
+			return null;
+		}
+
+		Entry entry = null;
+
+		synchronized (this) {
+			entry = (Entry) keys.get(host + path);
+
+			if(entry == null) {
+				miss++;
+				return null;
+			}
+
+			files.get(entry.file.getPath()); // touch
+		}
+
+		if(!entry.valid()) {
+			remove(entry.file);
+
+			synchronized (this) {
+				miss++;
+			}
+
+			return null;
+		}
+
+		synchronized (this) {
+			hit++;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Reads or maps the file if it fits the limit.
+	 * @param host
+	 * @param path
+	 * @param stream
+	 * @param date formatter for the Last-Modified header.
+	 * @return the entry or null if the file should not be cached.
+	 */
+	protected Entry put(String host, String path, Deploy.Stream stream, DateFormat date) {
+		if(limit == 0 || !(stream instanceof Deploy.Big)) {
+			return null;
+		}
+
+		File file = ((Deploy.Big) stream).file();
+		long length = stream.length();
+
+		if(length == 0 || length > limit / 4) {
+			return null;
+		}
+
+		String type = Event.MIME.content(stream.name(), "application/octet-stream");
+		Entry entry = null;
+
+		synchronized (this) {
+			entry = (Entry) files.get(file.getPath());
+		}
+
+		if(entry != null && !entry.type.equals(type)) {
+			return null; // a blob shared under another extension
+		}
+
+		if(entry == null) {
+			try {
+				String hash = hash(file);
+				File gzip = new File(file.getPath() + ".gz");
+
+				if(Deploy.compressible(stream.name()) && gzip.exists() && Deploy.date(gzip) == stream.date()) {
+					entry = new Entry(file, type, "identity", hash, stream.date(), length, date);
+					entry.gzip = new Entry(gzip, type, "gzip", hash, stream.date(), gzip.length(), date);
+				}
+				else {
+					entry = new Entry(file, type, null, hash, stream.date(), length, date);
+				}
+			}
+			catch(IOException e) {
+				return null;
+			}
+
+			synchronized (this) {
+				Entry old = (Entry) files.put(file.getPath(), entry);
+
+				if(old != null) {
+					drop(old);
+				}
+
+				bytes += entry.size();
+				evict();
+			}
+		}
+
+		synchronized (this) {
+			if(files.containsKey(file.getPath())) {
+				keys.put(host + path, entry);
+				entry.keys.add(host + path);
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Called when a file is written by a deploy, changing the compressed 
+	 * variant also drops the original.
+	 * @param file
+	 */
+	protected synchronized void remove(File file) {
+		String path = file.getPath();
+		Entry entry = (Entry) files.remove(path);
+
+		if(entry != null) {
+			drop(entry);
+		}
+
+		if(path.endsWith(".gz")) {
+			entry = (Entry) files.remove(path.substring(0, path.length() - 3));
+
+			if(entry != null) {
+				drop(entry);
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator it = files.values().iterator();
+
+		while(bytes > limit && it.hasNext()) {
+			Entry entry = (Entry) it.next();
+			it.remove();
+			drop(entry);
+		}
+	}
+
+	private void drop(Entry entry) {
+		Iterator it = entry.keys.iterator();
+
+		while(it.hasNext()) {
+			String key = (String) it.next();
+
+			if(keys.get(key) == entry) {
+				keys.remove(key);
+			}
+		}
+
+		entry.keys.clear();
+		bytes -= entry.size();
+	}
+
+	public synchronized long hit() {
+		return hit;
+	}
+
+	public synchronized long miss() {
+		return miss;
+	}
+
+	/**
+	 * @return hits per lookup.
+	 */
+	public synchronized double ratio() {
+		return hit + miss == 0 ? 0 : (double) hit / (hit + miss);
+	}
+
+	/**
+	 * @return bytes held in memory, mapped files included.
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public long limit() {
+		return limit;
+	}
+
+	public synchronized int size() {
+		return files.size();
+	}
+
+	public String toString() {
+		return "hit: " + hit() + ", miss: " + miss() + ", ratio: " + (int) (ratio() * 100) + "%, files: " + size() + ", bytes: " + bytes() + "/" + limit + ", paths: " + paths.size();
+	}
+
+	/**
+	 * Watches the app folder tree, creation and deletion forgets resolved 
+	 * paths and modification drops the file from memory.
+	 */
+	static class Watch implements Runnable {
+		private WatchService service;
+		private HashMap dirs;
+		private Cache cache;
+
+		Watch(Cache cache, Path root) throws IOException {
+			this.cache = cache;
+
+			service = root.getFileSystem().newWatchService();
+			dirs = new HashMap();
+
+			register(root);
+		}
+
+		private void register(Path dir) throws IOException {
+			WatchKey key = dir.register(service, 
+					StandardWatchEventKinds.ENTRY_CREATE, 
+					StandardWatchEventKinds.ENTRY_DELETE, 
+					StandardWatchEventKinds.ENTRY_MODIFY);
+
+			dirs.put(key, dir);
+
+			File[] list = dir.toFile().listFiles();
+
+			if(list != null) {
+				for(int i = 0; i < list.length; i++) {
+					if(list[i].isDirectory()) {
+						register(list[i].toPath());
+					}
+				}
+			}
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					WatchKey key = service.take();
+					Path dir = (Path) dirs.get(key);
+					Iterator it = key.pollEvents().iterator();
+
+					while(it.hasNext()) {
+						WatchEvent event = (WatchEvent) it.next();
+						WatchEvent.Kind kind = event.kind();
+
+						if(kind == StandardWatchEventKinds.OVERFLOW || dir == null) {
+							cache.clear();
+							continue;
+						}
+
+						Path path = dir.resolve((Path) event.context());
+
+						if(kind == StandardWatchEventKinds.ENTRY_CREATE) {
+							cache.clear();
+
+							if(Files.isDirectory(path)) {
+								register(path);
+							}
+						}
+						else {
+							if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+								cache.clear();
+							}
+
+							cache.remove(path.toFile());
+						}
+					}
+
+					if(!key.reset()) {
+						dirs.remove(key);
+					}
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Content hash of a deployed file, valid while the file is unchanged.
+	 */
+	static class Print {
+		private String hash;
+		private long date, length;
+
+		Print(String hash, long date, long length) {
+			this.hash = hash;
+			this.date = date;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A file with prepared headers.
+	 */
+	static class Entry {
+		private File file;
+		private String type, hash;
+		private long date, length, checked;
+		private byte[] head;
+		private ByteBuffer body;
+		private LinkedList keys;
+		private Entry gzip;
+
+		/**
+		 * @param encoding null if the file has no compressed variant, "identity" for 
+		 * the original and "gzip" for the variant.
+		 * @param hash the content hash of the original or null.
+		 */
+		Entry(File file, String type, String encoding, String hash, long date, long length, DateFormat format) throws IOException {
+			this.file = file;
+			this.type = type;
+			this.hash = hash;
+			this.date = date;
+			this.length = length;
+
+			keys = new LinkedList();
+			checked = System.currentTimeMillis();
+
+			StringBuilder builder = new StringBuilder();
+
+			builder.append("Content-Type: " + type + Output.EOL);
+			builder.append("Content-Length: " + length + Output.EOL);
+			builder.append("Last-Modified: " + format.format(new Date(date)) + Output.EOL);
+			if(encoding == null || encoding.equals("identity")) {
+				builder.append("Accept-Ranges: bytes" + Output.EOL);
+			}
+
+			if(hash != null) {
+				builder.append("ETag: \"" + hash + (encoding == null || encoding.equals("identity") ? "" : "-" + encoding) + "\"" + Output.EOL);
+			}
+
+			if(encoding != null) {
+				if(!encoding.equals("identity")) {
+					builder.append("Content-Encoding: " + encoding + Output.EOL);
+				}
+
+				builder.append("Vary: Accept-Encoding" + Output.EOL);
+			}
+
+			head = builder.toString().getBytes();
+
+			FileInputStream in = new FileInputStream(file);
+
+			try {
+				FileChannel channel = in.getChannel();
+
+				if(length > SMALL) {
+					body = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				}
+				else {
+					body = ByteBuffer.allocateDirect((int) length);
+
+					while(body.hasRemaining()) {
+						if(channel.read(body) < 0) {
+							throw new EOFException(file.getPath());
+						}
+					}
+
+					body.flip();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/*
+		 * Checks the file at most once per CHECK.
+		 */
+		boolean valid() {
+			long now = System.currentTimeMillis();
+
+			if(now - checked < CHECK) {
+				return true;
+			}
+
+			checked = now;
+
+			long modified = file.lastModified();
+
+			return modified - modified % 1000 == date && file.length() == length;
+		}
+
+		long size() {
+			return length + head.length + (gzip == null ? 0 : gzip.size());
+		}
+
+		/**
+		 * @return the gzip variant or null.
+		 */
+		Entry gzip() {
+			return gzip;
+		}
+
+		String type() {
+			return type;
+		}
+
+		/**
+		 * @return the content hash of the original or null.
+		 */
+		String hash() {
+			return hash;
+		}
+
+		long date() {
+			return date;
+		}
+
+		long length() {
+			return length;
+		}
+
+		byte[] head() {
+			return head;
+		}
+
+		/**
+		 * @return a private view of the body.
+		 */
+		ByteBuffer body() {
+			return body.duplicate();
+		}
+	}
+}
@@ -15,16 +15,21 @@ import java.util.*;
 
 /**
  * This is the {@link Event} filter chain implementation, it has dynamic size with positional integrity.
+ * Service chains are compiled into an array {@link Plan} on deploy.
  * @author Marc
  */
 public class Chain extends LinkedList {
 	private int next;
+	private Micro.Rule micro;
+	private volatile Plan plan;
 
 	/*
 	 * Dynamic size list with positional integrity. If anyone has a better
 	 * solution to this please tell me!
 	 */
 	protected Link put(Link link) {
+		plan = null;
+
 		for(int i = 0; i < size(); i++) {
 			Link tmp = (Link) super.get(i);
 
@@ -42,34 +47,77 @@ public class Chain extends LinkedList {
 		return null;
 	}
 
+	/**
+	 * Compiles the services into an array, with their index and if they 
+	 * handle sessions, so filtering doesn't have to look them up.
+	 * @return the plan.
+	 */
+	protected Plan compile() {
+		Plan plan = new Plan(size());
+
+		for(int i = 0; i < plan.services.length; i++) {
+			Service service = (Service) get(i);
+
+			plan.services[i] = service;
+			plan.index[i] = service.index();
+			plan.notify[i] = notify(service);
+		}
+
+		this.plan = plan;
+		return plan;
+	}
+
+	private static boolean notify(Service service) {
+		try {
+			return service.getClass().getMethod("session", new Class[] {Session.class, int.class}).getDeclaringClass() != Service.class;
+		}
+		catch(Exception e) {
+			return true;
+		}
+	}
+
 	public void filter(final Event event) throws Event, Exception {
-		for (int i = 0; i < size(); i++) {
-			final Service service = (Service) get(i);
+		Plan plan = this.plan;
+
+		if(plan == null) {
+			plan = compile();
+		}
+
+		Daemon daemon = event.daemon();
+		boolean session = daemon.timeout > 0 && !event.headless;
+		String key = null;
+
+		if(session) {
+			key = event.cookie();
+			session = key == null || event.session() == null;
+		}
+
+		Deploy.Archive archive = null;
+		Invoker invoker = null;
+
+		if(daemon.host) {
+			archive = event.archive();
+			invoker = event.invoker();
+
+			try {
+				Thread.currentThread().setContextClassLoader(archive);
+			}
+			catch(AccessControlException e) {
+				// recursive chaining fails here, no worries! ;)
+			}
+		}
 
-			if (event.daemon().timeout > 0 && !event.headless) {
-				event.session(service, event);
+		for (int i = 0; i < plan.services.length; i++) {
+			Service service = plan.services[i];
+
+			if (session) {
+				event.session(service, key, plan.index[i], plan.notify[i]);
 			}
 
-			if(event.daemon().host) {
+			if(daemon.host) {
 				try {
-					final Deploy.Archive archive = event.daemon().archive(event.query().header("host"));
-					try {
-						Thread.currentThread().setContextClassLoader(archive);
-					}
-					catch(AccessControlException e) {
-						// recursive chaining fails here, no worries! ;)
-					}
-					Object o = AccessController.doPrivileged(new PrivilegedExceptionAction() {
-						public Object run() throws Exception {
-							try {
-								service.filter(event);
-								return null;
-							}
-							catch(Event event) {
-								return event;
-							}
-						}
-					}, archive.access());
+					invoker.service = service;
+					Object o = AccessController.doPrivileged(invoker, archive.access());
 
 					if(o != null) {
 						throw (Event) o;
@@ -109,6 +157,17 @@ public class Chain extends LinkedList {
 		}
 	}
 
+	/**
+	 * @return the micro-cache rule of a service in this chain or null.
+	 */
+	protected Micro.Rule micro() {
+		return micro;
+	}
+
+	protected void micro(Micro.Rule micro) {
+		this.micro = micro;
+	}
+
 	protected void reset() {
 		next = 0;
 	}
@@ -126,6 +185,43 @@ public class Chain extends LinkedList {
 		public int index();
 	}
 
+	/*
+	 * The services of a chain with what filtering needs to know about them.
+	 */
+	static class Plan {
+		private Service[] services;
+		private int[] index;
+		private boolean[] notify;
+
+		Plan(int size) {
+			services = new Service[size];
+			index = new int[size];
+			notify = new boolean[size];
+		}
+	}
+
+	/**
+	 * Filters an event with a hosted service, one per event.
+	 */
+	static class Invoker implements PrivilegedExceptionAction {
+		private Service service;
+		private Event event;
+
+		Invoker(Event event) {
+			this.event = event;
+		}
+
+		public Object run() throws Exception {
+			try {
+				service.filter(event);
+				return null;
+			}
+			catch(Event event) {
+				return event;
+			}
+		}
+	}
+
 	public String toString() {
 		StringBuilder buffer = new StringBuilder();
 		Iterator it = iterator();
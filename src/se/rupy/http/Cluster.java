@@ -0,0 +1,1055 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Messages between the nodes of the <b>multi</b> group. Small messages
+ * are batched a few milliseconds into one datagram and large ones are cut
+ * in fragments and put together again. Datagrams have a sequence number
+ * per node, a receiver asks for the ones it missed at most every
+ * {@link #ASK} milliseconds and delivers in order, and the sender keeps
+ * the last {@link #HISTORY} to send them again. A heartbeat with the last
+ * sequence lets receivers notice lost tails. A gap that isn't filled
+ * within {@link #GAP} milliseconds is skipped.<br>
+ * <br>
+ * A node is known by its <b>name</b>, or the hostname and port if it has
+ * none, and a random epoch per start; a second node with the same name
+ * is ignored and logged. Fragments must arrive in order for a message of
+ * at most {@link #LIMIT} bytes, others are dropped as are messages that
+ * are not complete within {@link #GAP} milliseconds. Nodes not heard from
+ * for {@link #FORGET} milliseconds are forgotten and at most
+ * {@link #PEERS} are remembered.<br>
+ * <br>
+ * Each topic has its own thread with a bounded queue, so a slow listener
+ * only delays its own topic; messages beyond {@link #QUEUE} are dropped.
+ * Topics starting with _ are internal, the others also go to the
+ * listeners of all topics.<br>
+ * <br>
+ * Every <b>gossip</b> milliseconds each node also tells the others its
+ * {@link Member} load and archives; a member that is silent for
+ * {@link #DEAD} intervals is down and after {@link #FORGET} milliseconds
+ * it's removed from the view. The reports are numbered and signed with
+ * the <b>gossip_secret</b>, without one none are sent or trusted, and
+ * the address of a member is the source of the datagram that carried its
+ * report.
+ *
+ * @author marc
+ */
+public class Cluster {
+	static int SIZE = 1400, PORT = 8888, HISTORY = 4096, PENDING = 512, QUEUE = 1024, LIMIT = 1048576, PARTS = 4, PEERS = 256;
+	static int DELAY = 5, ASK = 20, GAP = 1000, BEAT = 500, DEAD = 5, FORGET = 60000, TAG = 16;
+	static String ALL = "*", GROUP = "224.2.2.3", MEMBER = "_member";
+
+	private Daemon daemon;
+	private DatagramSocket socket;
+	private InetAddress address;
+	private String name;
+	private long epoch, sequence;
+	private int id;
+	private LinkedList frames;
+	private byte[][] history;
+	private long[] numbers;
+	private HashMap peers, topics, members;
+	private SecretKeySpec sign;
+	private long gossip, said, reports;
+	private long sent, received, resent, nacks, lost, dropped, twins, strangers, forged;
+
+	/**
+	 * @param daemon
+	 * @param gossip milliseconds between load reports or 0 for none.
+	 * @param secret shared by the nodes to sign the reports, null for none.
+	 * @throws IOException
+	 */
+	protected Cluster(Daemon daemon, long gossip, String secret) throws IOException {
+		this(daemon, daemon.properties().getProperty("name") == null ? daemon.name() + ":" + daemon.port : daemon.name(), gossip, secret, new DatagramSocket());
+
+		thread("cluster receive", new Runnable() {
+			public void run() {
+				receive();
+			}
+		});
+
+		thread("cluster send", new Runnable() {
+			public void run() {
+				send();
+			}
+		});
+
+		thread("cluster beat", new Runnable() {
+			public void run() {
+				beat();
+			}
+		});
+	}
+
+	/*
+	 * Without threads, the test sends and receives by hand.
+	 */
+	Cluster(Daemon daemon, String name, long gossip, String secret, DatagramSocket socket) throws IOException {
+		this.daemon = daemon;
+		this.name = name;
+		this.gossip = secret == null ? 0 : gossip;
+		this.socket = socket;
+
+		if(secret != null) {
+			try {
+				sign = new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(("gossip:" + secret).getBytes("UTF-8")), "HmacSHA256");
+			}
+			catch(GeneralSecurityException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		epoch = Event.random.nextLong();
+		address = InetAddress.getByName(GROUP);
+		frames = new LinkedList();
+		history = new byte[HISTORY][];
+		numbers = new long[HISTORY];
+		peers = new HashMap();
+		topics = new HashMap();
+		members = new HashMap();
+	}
+
+	private static void thread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the name of this node in the group.
+	 */
+	protected String name() {
+		return name;
+	}
+
+	/**
+	 * @return milliseconds between load reports, 0 if none are sent.
+	 */
+	protected long gossip() {
+		return gossip;
+	}
+
+	/**
+	 * @param topic
+	 * @param listener gets the messages of the topic, {@link #ALL} for all
+	 * that don't start with _.
+	 */
+	protected void add(String topic, Daemon.ClusterListener listener) {
+		synchronized (topics) {
+			Topic t = (Topic) topics.get(topic);
+
+			if(t == null) {
+				t = new Topic(topic);
+				topics.put(topic, t);
+			}
+
+			t.listeners.add(listener);
+		}
+	}
+
+	protected void remove(String topic, Daemon.ClusterListener listener) {
+		synchronized (topics) {
+			Topic t = (Topic) topics.get(topic);
+
+			if(t != null) {
+				t.listeners.remove(listener);
+			}
+		}
+	}
+
+	/**
+	 * Queues the message, in fragments if it doesn't fit in a datagram.
+	 * @param topic
+	 * @param message
+	 * @throws IOException if the message is larger than {@link #LIMIT}.
+	 */
+	protected void send(String topic, byte[] message) throws IOException {
+		if(message.length > LIMIT) {
+			throw new IOException("Message is too long (" + topic + " " + message.length + ").");
+		}
+
+		int room = SIZE - 64 - 3 * (name.length() + topic.length());
+
+		if(room < SIZE / 2) {
+			throw new IOException("Topic or name is too long (" + topic + ").");
+		}
+
+		int count = Math.max(1, (message.length + room - 1) / room);
+		LinkedList list = new LinkedList();
+		int id;
+
+		synchronized (frames) {
+			id = ++this.id;
+		}
+
+		for(int i = 0; i < count; i++) {
+			int offset = i * room;
+			int length = Math.min(room, message.length - offset);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 32);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(topic);
+			out.writeInt(id);
+			out.writeInt(i);
+			out.writeInt(count);
+			out.writeShort(length);
+			out.write(message, offset, length);
+			list.add(bytes.toByteArray());
+		}
+
+		synchronized (frames) {
+			frames.addAll(list);
+			frames.notify();
+		}
+	}
+
+	/*
+	 * Packs the queued frames into sequenced datagrams.
+	 */
+	private void send() {
+		while(true) {
+			try {
+				synchronized (frames) {
+					while(frames.isEmpty()) {
+						frames.wait();
+					}
+				}
+
+				Thread.sleep(DELAY);
+				flush();
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Sends what is queued now.
+	 */
+	void flush() throws IOException {
+		LinkedList list = null;
+
+		synchronized (frames) {
+			list = new LinkedList(frames);
+			frames.clear();
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(SIZE);
+		DataOutputStream out = new DataOutputStream(bytes);
+		Iterator it = list.iterator();
+
+		while(it.hasNext()) {
+			byte[] frame = (byte[]) it.next();
+
+			if(bytes.size() > 0 && bytes.size() + frame.length > SIZE) {
+				datagram(bytes);
+			}
+
+			if(bytes.size() == 0) {
+				out.writeByte(0);
+				out.writeByte('M');
+				out.writeUTF(name);
+				out.writeLong(epoch);
+				out.writeLong(sequence + 1);
+			}
+
+			out.write(frame);
+		}
+
+		if(bytes.size() > 0) {
+			datagram(bytes);
+		}
+	}
+
+	private void datagram(ByteArrayOutputStream bytes) throws IOException {
+		byte[] data = bytes.toByteArray();
+		bytes.reset();
+
+		synchronized (history) {
+			sequence++;
+			int i = (int) (sequence % HISTORY);
+			history[i] = data;
+			numbers[i] = sequence;
+		}
+
+		socket.send(new DatagramPacket(data, data.length, address, PORT));
+		sent++;
+	}
+
+	/*
+	 * Sends the last sequence so receivers can ask for lost tails, asks 
+	 * again for or skips the gaps of others, forgets the silent ones and 
+	 * gossips.
+	 */
+	private void beat() {
+		while(true) {
+			try {
+				Thread.sleep(gossip > 0 ? Math.min(BEAT, gossip) : BEAT);
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeByte(0);
+				out.writeByte('H');
+				out.writeUTF(name);
+				out.writeLong(epoch);
+
+				synchronized (history) {
+					out.writeLong(sequence);
+				}
+
+				byte[] data = bytes.toByteArray();
+				socket.send(new DatagramPacket(data, data.length, address, PORT));
+
+				long now = System.currentTimeMillis();
+
+				synchronized (peers) {
+					Iterator it = peers.values().iterator();
+
+					while(it.hasNext()) {
+						Peer peer = (Peer) it.next();
+
+						if(now - peer.seen > FORGET) {
+							it.remove();
+							continue;
+						}
+
+						if(peer.since > 0) {
+							if(now - peer.since > GAP) {
+								skip(peer);
+							}
+							else {
+								nack(peer);
+							}
+						}
+
+						sweep(peer, now);
+					}
+				}
+
+				if(gossip > 0 && now - said >= gossip) {
+					said = now;
+					gossip(now);
+				}
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void receive() {
+		try {
+			MulticastSocket socket = new MulticastSocket(PORT);
+			socket.joinGroup(address);
+
+			byte[] buffer = new byte[65536];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+			while(true) {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+
+				try {
+					int length = packet.getLength();
+
+					if(length > 1 && buffer[0] == 0) {
+						handle(buffer, length, packet.getAddress());
+					}
+					else if(length > 0) {
+						// from nodes without this layer
+						byte[] message = new byte[length];
+						System.arraycopy(buffer, 0, message, 0, length);
+						dispatch(null, ALL, message, null);
+					}
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	void handle(byte[] buffer, int length, InetAddress address) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 2, length - 2));
+		char type = (char) buffer[1];
+		String from = in.readUTF();
+		long epoch = in.readLong();
+
+		if(from.equals(name)) {
+			if(epoch != this.epoch && twins++ == 0) {
+				log("another node is named " + name);
+			}
+
+			return;
+		}
+
+		if(type == 'N') {
+			long target = in.readLong();
+
+			if(in.readUTF().equals(name) && target == this.epoch) {
+				int count = in.readShort();
+
+				for(int i = 0; i < count; i++) {
+					resend(in.readLong());
+				}
+			}
+
+			return;
+		}
+
+		long sequence = in.readLong();
+
+		synchronized (peers) {
+			Peer peer = (Peer) peers.get(from);
+
+			if(peer != null && peer.epoch != epoch && System.currentTimeMillis() - peer.seen < GAP) {
+				if(twins++ == 0) {
+					log("two nodes are named " + from);
+				}
+
+				return;
+			}
+
+			if(peer == null && peers.size() >= PEERS) {
+				strangers++;
+				return;
+			}
+
+			if(peer == null || peer.epoch != epoch) {
+				peer = new Peer(from, epoch, type == 'H' ? sequence + 1 : sequence);
+				peers.put(from, peer);
+			}
+
+			peer.seen = System.currentTimeMillis();
+
+			if(type == 'H') {
+				if(sequence >= peer.next && peer.since == 0) {
+					peer.since = peer.seen;
+					peer.last = sequence;
+					nack(peer);
+				}
+
+				return;
+			}
+
+			received++;
+
+			if(sequence < peer.next) {
+				return;
+			}
+
+			byte[] data = new byte[length];
+			System.arraycopy(buffer, 0, data, 0, length);
+
+			if(sequence == peer.next) {
+				deliver(peer, data, address);
+				peer.next++;
+				drain(peer);
+			}
+			else {
+				peer.pending.put(new Long(sequence), new Datagram(data, address));
+
+				if(peer.since == 0) {
+					peer.since = peer.seen;
+				}
+
+				peer.last = Math.max(peer.last, sequence);
+
+				if(peer.seen - peer.asked > ASK) {
+					nack(peer);
+				}
+
+				if(peer.pending.size() > PENDING) {
+					skip(peer);
+				}
+			}
+		}
+	}
+
+	private void drain(Peer peer) throws IOException {
+		while(!peer.pending.isEmpty() && ((Long) peer.pending.firstKey()).longValue() <= peer.next) {
+			Long first = (Long) peer.pending.firstKey();
+			Datagram datagram = (Datagram) peer.pending.remove(first);
+
+			if(first.longValue() == peer.next) {
+				deliver(peer, datagram.data, datagram.from);
+				peer.next++;
+			}
+		}
+
+		peer.since = peer.pending.isEmpty() && peer.last < peer.next ? 0 : System.currentTimeMillis();
+	}
+
+	/*
+	 * Gives up on the gap and continues with what arrived after it.
+	 */
+	private void skip(Peer peer) throws IOException {
+		long next = peer.pending.isEmpty() ? peer.last + 1 : ((Long) peer.pending.firstKey()).longValue();
+		lost += next - peer.next;
+		peer.next = next;
+		peer.parts.clear();
+		drain(peer);
+	}
+
+	/*
+	 * Asks the sender for the missing sequences.
+	 */
+	private void nack(Peer peer) throws IOException {
+		long to = peer.pending.isEmpty() ? peer.last : ((Long) peer.pending.lastKey()).longValue();
+		LinkedList missing = new LinkedList();
+
+		for(long i = peer.next; i <= to && missing.size() < 128; i++) {
+			if(!peer.pending.containsKey(new Long(i))) {
+				missing.add(new Long(i));
+			}
+		}
+
+		if(missing.isEmpty()) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + missing.size() * 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0);
+		out.writeByte('N');
+		out.writeUTF(name);
+		out.writeLong(epoch);
+		out.writeLong(peer.epoch);
+		out.writeUTF(peer.name);
+		out.writeShort(missing.size());
+
+		Iterator it = missing.iterator();
+
+		while(it.hasNext()) {
+			out.writeLong(((Long) it.next()).longValue());
+		}
+
+		byte[] data = bytes.toByteArray();
+		socket.send(new DatagramPacket(data, data.length, address, PORT));
+		peer.asked = System.currentTimeMillis();
+		nacks++;
+	}
+
+	private void resend(long sequence) throws IOException {
+		byte[] data = null;
+
+		synchronized (history) {
+			int i = (int) (sequence % HISTORY);
+
+			if(numbers[i] == sequence) {
+				data = history[i];
+			}
+		}
+
+		if(data != null) {
+			socket.send(new DatagramPacket(data, data.length, address, PORT));
+			resent++;
+		}
+	}
+
+	/*
+	 * Reads the frames of a datagram in order and puts fragments together.
+	 */
+	private void deliver(Peer peer, byte[] data, InetAddress from) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 2, data.length - 2));
+		in.readUTF();
+		in.readLong();
+		in.readLong();
+
+		while(in.available() > 0) {
+			String topic = in.readUTF();
+			int id = in.readInt();
+			int index = in.readInt();
+			int count = in.readInt();
+			byte[] part = new byte[in.readUnsignedShort()];
+			in.readFully(part);
+
+			if(count == 1 && index == 0) {
+				dispatch(peer, topic, part, from);
+				continue;
+			}
+
+			Integer key = new Integer(id);
+			Parts parts = (Parts) peer.parts.get(key);
+
+			if(count < 2 || count > 2 * LIMIT / SIZE + 1 || index < 0 || index >= count) {
+				peer.parts.remove(key);
+				continue;
+			}
+
+			if(parts == null) {
+				if(index > 0 || peer.parts.size() >= PARTS) {
+					continue;
+				}
+
+				parts = new Parts(topic, count);
+				peer.parts.put(key, parts);
+			}
+
+			if(index != parts.next || count != parts.count || !topic.equals(parts.topic) || 
+					parts.bytes.size() + part.length > LIMIT) {
+				peer.parts.remove(key);
+				continue;
+			}
+
+			parts.bytes.write(part);
+			parts.next++;
+
+			if(index == count - 1) {
+				peer.parts.remove(key);
+				dispatch(peer, topic, parts.bytes.toByteArray(), from);
+			}
+		}
+	}
+
+	/*
+	 * Drops the messages that were not put together in time.
+	 */
+	private void sweep(Peer peer, long now) {
+		Iterator it = peer.parts.values().iterator();
+
+		while(it.hasNext()) {
+			if(now - ((Parts) it.next()).date > GAP) {
+				it.remove();
+			}
+		}
+	}
+
+	private void dispatch(Peer peer, String topic, byte[] message, InetAddress from) throws IOException {
+		if(peer != null && topic.equals(MEMBER)) {
+			member(peer, message, from);
+			return;
+		}
+
+		Topic own = null, all = null;
+
+		synchronized (topics) {
+			own = (Topic) topics.get(topic);
+
+			if(!topic.startsWith("_") && !topic.equals(ALL)) {
+				all = (Topic) topics.get(ALL);
+			}
+		}
+
+		if(own != null) {
+			own.submit(message);
+		}
+
+		if(all != null) {
+			all.submit(message);
+		}
+	}
+
+	/*
+	 * Sends the load of this node and marks the silent members down.
+	 */
+	void gossip(long now) throws IOException {
+		Member local = daemon.member();
+
+		if(local != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(++reports);
+			local.write(out);
+
+			byte[] data = bytes.toByteArray();
+			bytes.write(tag(name, epoch, data, data.length));
+			send(MEMBER, bytes.toByteArray());
+		}
+
+		synchronized (members) {
+			Iterator it = members.values().iterator();
+
+			while(it.hasNext()) {
+				Member member = (Member) it.next();
+
+				if(now - member.date > FORGET) {
+					it.remove();
+				}
+				else if(!member.alive() && !member.down) {
+					member.down = true;
+					log("member " + member.name + " down");
+				}
+			}
+		}
+	}
+
+	/*
+	 * Takes a report that is signed by the node and newer than the last.
+	 */
+	private void member(Peer peer, byte[] message, InetAddress from) throws IOException {
+		int length = message.length - TAG;
+
+		if(sign == null || length < 8) {
+			return;
+		}
+
+		byte[] got = new byte[TAG];
+		System.arraycopy(message, length, got, 0, TAG);
+
+		if(!MessageDigest.isEqual(tag(peer.name, peer.epoch, message, length), got)) {
+			forged++;
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(message, 0, length));
+		long report = in.readLong();
+
+		if(report <= peer.report) {
+			return;
+		}
+
+		peer.report = report;
+
+		Member member = new Member(peer.name, from, gossip * DEAD);
+		member.read(in);
+
+		Member old = null;
+
+		synchronized (members) {
+			old = (Member) members.put(peer.name, member);
+		}
+
+		if(old == null || old.down) {
+			log("member " + peer.name + " up");
+		}
+	}
+
+	/*
+	 * The name and epoch of the node are signed with the report, so it
+	 * can't be sent again as another node or after a restart.
+	 */
+	private byte[] tag(String name, long epoch, byte[] data, int length) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(sign);
+			mac.update((name + '\n' + epoch + '\n').getBytes("UTF-8"));
+			mac.update(data, 0, length);
+
+			byte[] tag = new byte[TAG];
+			System.arraycopy(mac.doFinal(), 0, tag, 0, TAG);
+			return tag;
+		}
+		catch(GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private void log(String text) {
+		if(daemon.verbose && daemon.out != null) {
+			daemon.out.println(text);
+		}
+	}
+
+	/**
+	 * @return the names of the nodes heard from and when, in milliseconds.
+	 */
+	protected HashMap peers() {
+		HashMap map = new HashMap();
+
+		synchronized (peers) {
+			Iterator it = peers.values().iterator();
+
+			while(it.hasNext()) {
+				Peer peer = (Peer) it.next();
+				map.put(peer.name, new Long(peer.seen));
+			}
+		}
+
+		return map;
+	}
+
+	/**
+	 * Picks the member to forward a request to and counts it in its
+	 * queue until it reports again, so the next ones spread out.
+	 * @param load of this node.
+	 * @param from where the request comes from.
+	 * @return the alive member with the least load under this or null,
+	 * also if the request comes from a member.
+	 */
+	protected Member lightest(float load, InetAddress from) {
+		Member lightest = null;
+
+		synchronized (members) {
+			Iterator it = members.values().iterator();
+
+			while(it.hasNext()) {
+				Member member = (Member) it.next();
+
+				if(member.address.equals(from)) {
+					return null;
+				}
+
+				if(member.alive() && member.port > 0 && member.threads > 0 && 
+						member.load() < load && (lightest == null || member.load() < lightest.load())) {
+					lightest = member;
+				}
+			}
+
+			if(lightest != null) {
+				lightest.queue++;
+			}
+		}
+
+		return lightest;
+	}
+
+	/**
+	 * @return this node first and then the others by name, also the ones
+	 * that are down.
+	 */
+	protected List members() {
+		LinkedList list = new LinkedList();
+
+		synchronized (members) {
+			list.addAll(new TreeMap(members).values());
+		}
+
+		Member local = daemon.member();
+
+		if(local != null) {
+			list.addFirst(local);
+		}
+
+		return list;
+	}
+
+	public String toString() {
+		return "members: " + members.size() + ", peers: " + peers.size() + ", sent: " + sent + ", received: " + received + ", nacks: " + nacks + ", resent: " + resent + ", lost: " + lost + ", dropped: " + dropped + 
+			(twins > 0 ? ", twins: " + twins : "") + (strangers > 0 ? ", strangers: " + strangers : "") + (forged > 0 ? ", forged: " + forged : "");
+	}
+
+	/**
+	 * The load of a node, as it last said.
+	 */
+	public static class Member {
+		String name;
+		InetAddress address;
+		HashMap archives;
+		int port, queue, events, busy, threads;
+		long date, dead;
+		boolean down;
+
+		Member(String name, InetAddress address, long dead) {
+			this.name = name;
+			this.address = address;
+			this.dead = dead;
+
+			archives = new HashMap();
+			date = System.currentTimeMillis();
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(port);
+			out.writeInt(queue);
+			out.writeInt(events);
+			out.writeInt(busy);
+			out.writeInt(threads);
+			out.writeInt(archives.size());
+
+			Iterator it = archives.entrySet().iterator();
+
+			while(it.hasNext()) {
+				Map.Entry entry = (Map.Entry) it.next();
+				out.writeUTF((String) entry.getKey());
+				out.writeLong(((Long) entry.getValue()).longValue());
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			port = in.readInt();
+			queue = in.readInt();
+			events = in.readInt();
+			busy = in.readInt();
+			threads = in.readInt();
+
+			int count = in.readInt();
+
+			for(int i = 0; i < count; i++) {
+				archives.put(in.readUTF(), new Long(in.readLong()));
+			}
+		}
+
+		/**
+		 * @return the node name, see {@link Daemon#name()}.
+		 */
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * @return where the node sends from or null for this node.
+		 */
+		public InetAddress address() {
+			return address;
+		}
+
+		public int port() {
+			return port;
+		}
+
+		/**
+		 * @return events waiting for a worker.
+		 */
+		public int queue() {
+			return queue;
+		}
+
+		/**
+		 * @return open events.
+		 */
+		public int events() {
+			return events;
+		}
+
+		/**
+		 * @return busy workers.
+		 */
+		public int busy() {
+			return busy;
+		}
+
+		public int threads() {
+			return threads;
+		}
+
+		/**
+		 * @return busy and waiting events per worker.
+		 */
+		public float load() {
+			return threads == 0 ? 0 : (float) (busy + queue) / threads;
+		}
+
+		/**
+		 * @return archive name to deploy date.
+		 */
+		public HashMap archives() {
+			return archives;
+		}
+
+		/**
+		 * @return when the node was last heard from.
+		 */
+		public long date() {
+			return date;
+		}
+
+		/**
+		 * @return false if the node has been silent too long.
+		 */
+		public boolean alive() {
+			return address == null || System.currentTimeMillis() - date < dead;
+		}
+
+		public String toString() {
+			return name + (address == null ? "" : " " + address.getHostAddress()) + ":" + port + 
+				", queue: " + queue + ", events: " + events + ", busy: " + busy + "/" + threads + 
+				", archives: " + archives.size() + ", " + (alive() ? "alive" : "down " + (System.currentTimeMillis() - date) + " ms");
+		}
+	}
+
+	/*
+	 * What we know of another node.
+	 */
+	static class Peer {
+		String name;
+		long epoch, next, last, since, seen, asked, report;
+		TreeMap pending;
+		HashMap parts;
+
+		Peer(String name, long epoch, long next) {
+			this.name = name;
+			this.epoch = epoch;
+			this.next = next;
+			this.last = next - 1;
+
+			pending = new TreeMap();
+			parts = new HashMap();
+		}
+	}
+
+	/*
+	 * A datagram that arrived before its turn and where it came from.
+	 */
+	static class Datagram {
+		byte[] data;
+		InetAddress from;
+
+		Datagram(byte[] data, InetAddress from) {
+			this.data = data;
+			this.from = from;
+		}
+	}
+
+	/*
+	 * A message being put together, the fragments grow the buffer.
+	 */
+	static class Parts {
+		ByteArrayOutputStream bytes;
+		String topic;
+		int count, next;
+		long date;
+
+		Parts(String topic, int count) {
+			this.topic = topic;
+			this.count = count;
+
+			bytes = new ByteArrayOutputStream(SIZE);
+			date = System.currentTimeMillis();
+		}
+	}
+
+	/*
+	 * The listeners of a topic and the thread that calls them.
+	 */
+	class Topic {
+		List listeners;
+		ThreadPoolExecutor executor;
+
+		Topic(final String name) {
+			listeners = new CopyOnWriteArrayList();
+			executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(QUEUE), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "cluster " + name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		void submit(final byte[] message) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						Iterator it = listeners.iterator();
+
+						while(it.hasNext()) {
+							try {
+								((Daemon.ClusterListener) it.next()).receive(message);
+							}
+							catch(Exception e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+			}
+			catch(RejectedExecutionException e) {
+				dropped++;
+			}
+		}
+	}
+}
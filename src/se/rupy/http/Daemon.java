@@ -11,7 +11,12 @@ import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import java.nio.channels.*;
 
@@ -28,8 +33,16 @@ public class Daemon implements Runnable {
 	static DateFormat DATE;
 
 	private int selected, valid, accept, readwrite; // panel stats
-	private HashMap archive, service;
+	private HashMap service;
+	private volatile Router router = Router.NONE;
+	private volatile Routes routes = new Routes(new HashMap());
+	private Object swap = new Object();
 	private Heart heart;
+	private Cache store;
+	private Policy policy;
+	private Micro micro;
+	private Seal seal;
+	private ConcurrentHashMap packs = new ConcurrentHashMap();
 	private Selector selector;
 	private String domain, name, bind;
 
@@ -37,9 +50,10 @@ public class Daemon implements Runnable {
 	Properties properties;
 	PrintStream out, access, error;
 	AccessControlContext control, no_control;
-	ConcurrentHashMap events, session;
-	int threads, timeout, cookie, delay, size, port, cache, async_timeout;
-	boolean verbose, debug, host, alive, panel;
+	ConcurrentHashMap events;
+	Sessions session;
+	int threads, timeout, cookie, delay, size, port, cache, async_timeout, decide, decide_miss;
+	boolean verbose, debug, host, alive, panel, pack, dedupe;
 	Async client;
 
 	/**
@@ -76,6 +90,29 @@ public class Daemon implements Runnable {
 	 * </td><td>
 	 *            session timeout in seconds or 0 to disable sessions 
 	 * </td></tr>
+	 * <tr><td valign="top"><b>sessions</b> (65536)
+	 * </td><td>
+	 *            sessions per host, the least recently used are timed out 
+	 *            beyond this or 0 for no limit.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>vault</b> ()
+	 * </td><td valign="top">
+	 *            file to keep sessions in off the heap so they survive 
+	 *            restarts, see {@link Vault}.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>vault_size</b> (16777216)
+	 * </td><td valign="top">
+	 *            initial bytes of the vault file, it grows when needed.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>seal</b> ()
+	 * </td><td valign="top">
+	 *            secret to sign stateless sessions with, they are kept in a 
+	 *            cookie instead of on the server, see {@link Seal}.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>seal_crypt</b> (false)
+	 * </td><td valign="top">
+	 *            to also encrypt the stateless session cookie.
+	 * </td></tr>
 	 * <tr><td valign="top"><b>cookie</b> (4)</td><td>
 	 *            session key character length; default and minimum is 4, > 10 can 
 	 *            be considered secure.
@@ -100,6 +137,33 @@ public class Daemon implements Runnable {
 	 * </td><td valign="top">
 	 *            seconds to hard cache static files.
 	 * </td></tr>
+	 * <tr><td valign="top"><b>policy</b> ()
+	 * </td><td valign="top">
+	 *            file with cache rules for all hosts, see {@link Policy}.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>micro</b> ()
+	 * </td><td valign="top">
+	 *            file with paths whose dynamic replies are cached, see {@link Micro}.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>micro_size</b> (8388608)
+	 * </td><td valign="top">
+	 *            bytes of dynamic replies to hold in memory; 0 disables.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>store</b> (67108864)
+	 * </td><td valign="top">
+	 *            bytes of static files to hold in memory, files larger than 
+	 *            a quarter of this are always read from disk; 0 disables.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>pack</b> (false)
+	 * </td><td valign="top">
+	 *            to keep the resources of each archive in one mapped file 
+	 *            instead of extracting them, for hosts with many small files.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>dedupe</b> (false)
+	 * </td><td valign="top">
+	 *            to store resources once by content hash in app/.blob, so 
+	 *            hosts that ship the same files share disk and memory.
+	 * </td></tr>
 	 * <tr><td valign="top"><b>verbose</b> (false)
 	 * </td><td valign="top">
 	 *            to log information about these startup parameters, high-level 
@@ -128,6 +192,8 @@ public class Daemon implements Runnable {
 	 *            jars [host].jar, for example: <i>host.rupy.se.jar</i>. 
 	 *            Also if you want to deploy root domain, just deploy www.[host]; 
 	 *            so for example <i>www.rupy.se.jar</i> will trigger <i>http://rupy.se</i>. 
+	 *            A jar named *.[host] takes the subdomains of host that have no 
+	 *            jar of their own, like <i>*.rupy.se.jar</i> for <i>http://a.b.rupy.se</i>. 
 	 *            To authenticate deployments you should use a properties file 
 	 *            called <i>passport</i> in the rupy root where you store [host]=[pass].<br><br>
 	 *            if your host is a <a href="http://en.wikipedia.org/wiki/Platform_as_a_service">PaaS</a> 
@@ -162,18 +228,61 @@ public class Daemon implements Runnable {
 	 *            hosts: <i>one.rupy.se</i> and <i>two.rupy.se</i> that belong under <i>host.rupy.se</i> 
 	 *            so I need to return "OK" if any of these two specific domains try to deploy.
 	 * </td></tr>
+	 * <tr><td valign="top"><b>decide</b> (60) <i>requires</i> <b>host</b>
+	 * </td><td>
+	 *            seconds to remember an "OK" to the "host" message, an expired answer 
+	 *            is used while the control domain is asked again in the background. 
+	 *            Call {@link #forget()} when the answers change; 0 asks every time.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>decide_miss</b> (5) <i>requires</i> <b>host</b>
+	 * </td><td>
+	 *            seconds to remember any other answer to the "host" message.
+	 * </td></tr>
 	 * <tr><td valign="top"><b>multi</b> (false)
 	 * </td><td>
-	 *            UDP multicast to all cluster nodes for real-time sync. But for this to work you also need to answer this 
+	 *            UDP multicast to all cluster nodes for real-time sync, see {@link Cluster}. But for this to work you also need to answer this 
 	 *            message with "OK" for your known individual cluster ips:
 <tt><br><br>
 &nbsp;&nbsp;&nbsp;&nbsp;{"type": "packet", "from": "[ip]"}<br>
 <br></tt>
+	 * </td></tr>
+	 * <tr><td valign="top"><b>gossip</b> (1000) <i>requires</i> <b>multi</b>
+	 * </td><td>
+	 *            milliseconds between the load reports this node sends to the 
+	 *            others, see {@link #members()}; 0 sends none.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>gossip_secret</b> (<b>replicate</b>) <i>requires</i> <b>multi</b>
+	 * </td><td>
+	 *            secret shared by the nodes to sign the load reports with;
+	 *            without one no reports are sent or trusted.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>overflow</b> (0) <i>requires</i> <b>gossip</b>
+	 * </td><td>
+	 *            milliseconds the oldest queued event can wait before new 
+	 *            requests are forwarded to the least loaded member, see 
+	 *            {@link Forward}; 0 never forwards.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>name</b> (hostname)
+	 * </td><td>
+	 *            the name of this node in the cluster, see {@link #name()}; 
+	 *            without it the cluster knows the node by hostname and port. 
+	 *            Give each node its own.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>replicate</b> () <i>requires</i> <b>multi</b>
+	 * </td><td>
+	 *            secret shared by the nodes to replicate sessions with, 
+	 *            see {@link Replica}.
+	 * </td></tr>
+	 * <tr><td valign="top"><b>replicate_wait</b> (100)
+	 * </td><td>
+	 *            milliseconds to wait for a session that this node doesn't 
+	 *            have from the others.
 	 * </td></tr>
 	 * </table>
 	 */
 	public Daemon(Properties properties) {
 		this.properties = properties;
+		name = properties.getProperty("name");
 
 		threads = Integer.parseInt(properties.getProperty("threads", "5"));
 		cookie = Integer.parseInt(properties.getProperty("cookie", "4"));
@@ -183,6 +292,28 @@ public class Daemon implements Runnable {
 		size = Integer.parseInt(properties.getProperty("size", "1024"));
 		cache = Integer.parseInt(properties.getProperty("cache", "86400"));
 		async_timeout = Integer.parseInt(properties.getProperty("async_timeout", "1000"));
+		store = new Cache(Long.parseLong(properties.getProperty("store", "67108864")));
+		policy = new Policy();
+
+		if(properties.getProperty("policy") != null) {
+			try {
+				policy.rules(Policy.parse(new FileInputStream(properties.getProperty("policy"))));
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		micro = new Micro(Long.parseLong(properties.getProperty("micro_size", "8388608")));
+
+		if(properties.getProperty("micro") != null) {
+			try {
+				micro.load(new FileInputStream(properties.getProperty("micro")));
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
 
 		verbose = properties.getProperty("verbose", "false").toLowerCase()
 				.equals("true");
@@ -192,6 +323,10 @@ public class Daemon implements Runnable {
 				"true");
 		panel = properties.getProperty("panel", "false").toLowerCase().equals(
 				"true");
+		pack = properties.getProperty("pack", "false").toLowerCase().equals(
+				"true");
+		dedupe = properties.getProperty("dedupe", "false").toLowerCase().equals(
+				"true");
 		boolean multi = properties.getProperty("multi", "false").toLowerCase().equals(
 				"true");
 
@@ -199,7 +334,8 @@ public class Daemon implements Runnable {
 		
 		if(multi) {
 			try {
-				setup();
+				cluster = new Cluster(this, Long.parseLong(properties.getProperty("gossip", "1000")),
+						properties.getProperty("gossip_secret", properties.getProperty("replicate")));
 			}
 			catch(Exception e) {
 				e.printStackTrace();
@@ -208,6 +344,9 @@ public class Daemon implements Runnable {
 
 		if(host) {
 			domain = properties.getProperty("domain", "host.rupy.se");
+			decide = Integer.parseInt(properties.getProperty("decide", "60")) * 1000;
+			decide_miss = Integer.parseInt(properties.getProperty("decide_miss", "5")) * 1000;
+			refresh.allowCoreThreadTimeOut(true);
 			PermissionCollection permissions = new Permissions();
 			permissions.add(new RuntimePermission("setContextClassLoader"));
 			control = new AccessControlContext(new ProtectionDomain[] {
@@ -221,9 +360,48 @@ public class Daemon implements Runnable {
 		//	debug = false;
 		//}
 
-		archive = new HashMap();
 		service = new HashMap();
-		session = new ConcurrentHashMap();
+		session = new Sessions(this, Integer.parseInt(properties.getProperty("sessions", "65536")));
+
+		if(timeout > 0 && properties.getProperty("seal") != null) {
+			try {
+				seal = new Seal(properties.getProperty("seal"), 
+						properties.getProperty("seal_crypt", "false").toLowerCase().equals("true"), timeout);
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		else if(timeout > 0 && properties.getProperty("vault") != null) {
+			try {
+				session.vault(new Vault(new File(properties.getProperty("vault")), 
+						Long.parseLong(properties.getProperty("vault_size", "16777216")), timeout));
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		overflow = Integer.parseInt(properties.getProperty("overflow", "0"));
+
+		if(overflow > 0 && cluster != null && cluster.gossip() > 0) {
+			try {
+				forward = new Forward(this);
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		if(timeout > 0 && seal == null && cluster != null && properties.getProperty("replicate") != null) {
+			try {
+				session.replica(new Replica(this, properties.getProperty("replicate"), 
+						Long.parseLong(properties.getProperty("replicate_wait", "100")), timeout));
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
 		events = new ConcurrentHashMap();
 
 		workers = new Chain();
@@ -386,6 +564,8 @@ public class Daemon implements Runnable {
 
 			client = new Async(this, async_timeout, false);
 			client.start(threads);
+
+			store.watch(new File("app"));
 			
 			alive = true;
 
@@ -413,14 +593,22 @@ public class Daemon implements Runnable {
 		workers.clear();
 		alive = false;
 		heart.stop();
+		session.close();
 
 		selector.wakeup();
 	}
 
-	protected ConcurrentHashMap session() {
+	protected Sessions session() {
 		return session;
 	}
 
+	/**
+	 * @return the stateless session signer or null.
+	 */
+	protected Seal seal() {
+		return seal;
+	}
+
 	public int online() {
 		return session.size();
 	}
@@ -429,8 +617,76 @@ public class Daemon implements Runnable {
 		return selector;
 	}
 
+	/**
+	 * @return the static content cache, for hit ratio and memory use.
+	 */
+	public Cache store() {
+		return store;
+	}
+
+	protected Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * @return the cache of dynamic replies.
+	 */
+	protected Micro micro() {
+		return micro;
+	}
+
+	/**
+	 * @param host
+	 * @param pack null if the archive was extracted.
+	 */
+	protected void pack(String host, Deploy.Pack pack) {
+		if(pack == null) {
+			packs.remove(host);
+		}
+		else {
+			packs.put(host, pack);
+		}
+	}
+
+	/**
+	 * @return the packs of all hosts.
+	 */
+	protected Collection packs() {
+		return packs.values();
+	}
+
+	private Deploy.Stream blob(String host, String path) {
+		Deploy.Pack pack = (Deploy.Pack) packs.get(host);
+
+		if(pack == null && this.host) {
+			Deploy.Archive archive = routes.host(host);
+
+			if(archive != null) {
+				pack = (Deploy.Pack) packs.get(archive.host());
+			}
+		}
+
+		return pack == null ? null : pack.get(path);
+	}
+
+	/**
+	 * @param stream
+	 * @return the content hash from the deploy or null.
+	 */
+	protected String hash(Deploy.Stream stream) {
+		if(stream instanceof Deploy.Blob) {
+			return ((Deploy.Blob) stream).hash();
+		}
+
+		if(stream instanceof Deploy.Big) {
+			return store.hash(((Deploy.Big) stream).file());
+		}
+
+		return null;
+	}
+
 	protected void chain(final Deploy.Archive archive) throws Exception {
-		Deploy.Archive old = (Deploy.Archive) this.archive.get(archive.name());
+		Deploy.Archive old = (Deploy.Archive) routes.archive.get(archive.name());
 
 		if (old != null) {
 			Iterator it = old.service().iterator();
@@ -464,7 +720,32 @@ public class Daemon implements Runnable {
 			add(archive.chain(), service, archive);
 		}
 
-		this.archive.put(archive.name(), archive);
+		archive.router(new Router(archive.chain()));
+
+		publish(archive.name(), archive);
+		store.clear();
+		micro.clear();
+	}
+
+	/**
+	 * Replaces the routes with a copy where the archive is added.
+	 * @param name
+	 * @param archive null removes it.
+	 */
+	private void publish(String name, Deploy.Archive archive) {
+		synchronized (swap) {
+			HashMap map = (HashMap) routes.archive.clone();
+
+			if(archive == null) {
+				map.remove(name);
+			}
+			else {
+				map.put(name, archive);
+			}
+
+			routes = new Routes(map);
+			forget();
+		}
 	}
 
 	public Deploy.Archive archive(String name) {
@@ -477,41 +758,36 @@ public class Daemon implements Runnable {
 				return Deploy.Archive.deployer;
 			}
 
-			try {
-				String message = "{\"type\": \"host\", \"file\": \"" + name + "\"}";
-				String ok = (String) send(message);
-
-				if(ok.equals("OK")) {
-					return Deploy.Archive.deployer;
-				}
-			}
-			catch(Exception e) {
-				e.printStackTrace();
-			}
-
-			Deploy.Archive archive = (Deploy.Archive) this.archive.get(name);
-
-			if(archive == null) {
-				archive = (Deploy.Archive) this.archive.get("www." + name);
-
-				if(archive == null) {
-					String base = name.substring(name.indexOf('.') + 1, name.length());
-
-					//System.out.println(base);
-
-					archive = (Deploy.Archive) this.archive.get(base);
-				}
+			if(decide(name)) {
+				return Deploy.Archive.deployer;
 			}
 
-			return archive;
+			return routes.host(name.substring(0, name.length() - 4));
 		}
 		else {
-			return (Deploy.Archive) this.archive.get(name);
+			return (Deploy.Archive) routes.archive.get(name);
 		}
 	}
 
+	/*
+	 * How many control domain answers to remember and how many expired 
+	 * ones can wait to be asked again.
+	 */
+	static int DECISIONS = 65536, REFRESH = 1024;
+
 	private Listener listener;
-	private Chain listeners; // ClusterListeners
+	private LinkedHashMap decisions = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > DECISIONS;
+		}
+	};
+	private ThreadPoolExecutor refresh = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(REFRESH), new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "decide");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	private ErrorListener errlis;
 	private Com com;
 	
@@ -531,6 +807,102 @@ public class Daemon implements Runnable {
 		return listener.receive(message);
 	}
 
+	/**
+	 * Asks the control domain if a host belongs to it, with the "host" 
+	 * message. The answer is remembered, see <b>decide</b>.
+	 * @param file like "one.rupy.se.jar".
+	 * @return true if the control domain answered "OK".
+	 */
+	protected boolean decide(String file) {
+		return decide("host", file, "{\"type\": \"host\", \"file\": \"" + file + "\"}");
+	}
+
+	private boolean decide(String type, String subject, final String message) {
+		final String key = type + " " + subject;
+		Decision decision = null;
+
+		synchronized (decisions) {
+			decision = (Decision) decisions.get(key);
+		}
+
+		if(decision == null) {
+			return ask(key, message).ok;
+		}
+
+		if(System.currentTimeMillis() > decision.expires && decision.refresh()) {
+			try {
+				refresh.execute(new Runnable() {
+					public void run() {
+						ask(key, message);
+					}
+				});
+			}
+			catch(RejectedExecutionException e) {
+				synchronized (decision) {
+					decision.refresh = false;
+				}
+			}
+		}
+
+		return decision.ok;
+	}
+
+	private Decision ask(String key, String message) {
+		boolean ok = false;
+
+		try {
+			ok = "OK".equals(send(message));
+		}
+		catch(Exception e) {
+			e.printStackTrace(out);
+		}
+
+		Decision decision = new Decision(ok, System.currentTimeMillis() + (ok ? decide : decide_miss));
+
+		if(ok ? decide > 0 : decide_miss > 0) {
+			synchronized (decisions) {
+				decisions.put(key, decision);
+			}
+		}
+
+		return decision;
+	}
+
+	/**
+	 * Forgets what the control domain answered, so the next request asks 
+	 * again. Deploys and {@link #set(Listener)} call this.
+	 */
+	public void forget() {
+		synchronized (decisions) {
+			decisions.clear();
+		}
+	}
+
+	/*
+	 * An answer from the control domain and when it expires.
+	 */
+	static class Decision {
+		private boolean ok, refresh;
+		private long expires;
+
+		Decision(boolean ok, long expires) {
+			this.ok = ok;
+			this.expires = expires;
+		}
+
+		/*
+		 * @return true for the first caller after it expired.
+		 */
+		synchronized boolean refresh() {
+			if(refresh) {
+				return false;
+			}
+
+			refresh = true;
+			return true;
+		}
+	}
+
 	/**
 	 * Intra JVM many-to-one listener. Used on cluster for domain 
 	 * controller, use multicast on cluster instead.
@@ -554,6 +926,7 @@ public class Daemon implements Runnable {
 			}
 
 			this.listener = listener;
+			forget();
 			return true;
 		}
 		catch(IOException e) {
@@ -629,7 +1002,7 @@ public class Daemon implements Runnable {
 		 * from cluster node <i>one</i> ({@link Daemon#name()}) 
 		 * with application <i>host.rupy.se</i> the first bytes would be 
 		 * 'se.rupy.host.one' followed by payload.
-		 * Max length is 256 bytes!
+		 * Called on a thread of its own, in the order sent by each node.
 		 * @throws Exception
 		 */
 		public void receive(byte[] message) throws Exception;
@@ -683,12 +1056,12 @@ public class Daemon implements Runnable {
 	}
 
 	/**
-	 * Send inter-cluster-node UDP multicast message.
+	 * Send inter-cluster-node UDP multicast message, see {@link Cluster}.
 	 * @param tail your payload.
-	 * Max length is 256 bytes including header: [host].[node]!
+	 * Max length is 1MB including header: [host].[node]!
 	 */
 	public void broadcast(byte[] tail) throws Exception {
-		if(socket != null) {
+		if(cluster != null) {
 			ClassLoader loader = Thread.currentThread().getContextClassLoader();
 
 			if(!(loader instanceof Deploy.Archive)) {
@@ -719,16 +1092,12 @@ public class Daemon implements Runnable {
 			 */
 			byte[] head = (name() + "." + archive.host()).getBytes();
 
-			if(head.length + tail.length > 256) {
-				throw new Exception("Message is too long (" + archive.host() + " " + tail.length + ").");
-			}
-
 			byte[] data = new byte[head.length + tail.length];
 
 			System.arraycopy(head, 0, data, 0, head.length);
 			System.arraycopy(tail, 0, data, head.length, tail.length);
 
-			socket.send(new DatagramPacket(data, data.length, address, 8888));
+			cluster.send(archive.host(), data);
 		}
 	}
 
@@ -737,8 +1106,8 @@ public class Daemon implements Runnable {
 	 * @param listener
 	 */
 	public void add(ClusterListener listener) {
-		if(listeners != null) {
-			listeners.add(listener);
+		if(cluster != null) {
+			cluster.add(Cluster.ALL, listener);
 		}
 	}
 
@@ -747,62 +1116,64 @@ public class Daemon implements Runnable {
 	 * @param listener
 	 */
 	public void remove(ClusterListener listener) {
-		if(listeners != null) {
-			listeners.remove(listener);
+		if(cluster != null) {
+			cluster.remove(Cluster.ALL, listener);
 		}
 	}
 
-	DatagramSocket socket;
-	InetAddress address;
+	private Cluster cluster;
+	private Forward forward;
+	private int overflow;
 
-	private void setup() throws IOException {
-		listeners = new Chain();
-		address = InetAddress.getByName("224.2.2.3");
-		socket = new DatagramSocket();
+	/**
+	 * @return the messaging between the nodes or null without <b>multi</b>.
+	 */
+	protected Cluster cluster() {
+		return cluster;
+	}
 
-		Thread thread = new Thread(new Runnable() {
-			public void run() {
-				try {
-					MulticastSocket socket = new MulticastSocket(8888);
-					socket.joinGroup(address);
+	/**
+	 * The cluster as this node sees it from the <b>gossip</b>.
+	 * @return {@link Cluster.Member}s, this node first.
+	 */
+	public List members() {
+		if(cluster == null) {
+			return Collections.EMPTY_LIST;
+		}
 
-					byte[] empty = new byte[256];
-					byte[] data = new byte[256];
-					DatagramPacket packet = new DatagramPacket(data, data.length);
+		return cluster.members();
+	}
 
-					while (true) {
-						socket.receive(packet);
+	/**
+	 * @return the load of this node or null before it's started.
+	 */
+	protected Cluster.Member member() {
+		if(workers == null || queue == null || events == null) {
+			return null;
+		}
 
-						//String message = "{\"type\": \"packet\", \"from\": \"" + packet.getAddress() + "\"}";
-						//String ok = (String) send(message);
+		Cluster.Member member = new Cluster.Member(cluster == null ? name() : cluster.name(), null, 0);
+		member.port = port;
+		member.queue = queue.size();
+		member.events = events.size();
+		member.threads = threads;
 
-						//if(ok.equals("OK")) {
-						synchronized (listeners) {
-							Iterator it = listeners.iterator();
+		Iterator it = new ArrayList(workers).iterator();
 
-							while(it.hasNext()) {
-								ClusterListener listener = (ClusterListener) it.next();
+		while(it.hasNext()) {
+			if(((Worker) it.next()).busy()) {
+				member.busy++;
+			}
+		}
 
-								try {
-									listener.receive(data);
-								}
-								catch(Exception e) {
-									e.printStackTrace();
-								}
-							}
-						}
-						//}
+		it = routes.archive.values().iterator();
 
-						System.arraycopy(empty, 0, data, 0, 256);
-					}
-				}
-				catch(Exception e) {
-					e.printStackTrace();
-				}
-			}
-		});
+		while(it.hasNext()) {
+			Deploy.Archive archive = (Deploy.Archive) it.next();
+			member.archives.put(archive.name(), new Long(archive.date()));
+		}
 
-		thread.start();
+		return member;
 	}
 
 	/**
@@ -818,7 +1189,7 @@ public class Daemon implements Runnable {
 	}
 
 	protected void add(HashMap map, final Service service, final Deploy.Archive archive) throws Exception {
-		String path = null;
+		String path = null, rule = null;
 
 		if(host) {
 			Thread.currentThread().setContextClassLoader(archive);
@@ -827,19 +1198,25 @@ public class Daemon implements Runnable {
 					return service.path();
 				}
 			}, control);
+			rule = (String) AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws Exception {
+					return service.cache();
+				}
+			}, control);
 		}
 		else {
 			path = service.path();
+			rule = service.cache();
 		}
 
 		if(path == null) {
 			path = "null";
 		}
 
-		StringTokenizer paths = new StringTokenizer(path, ":");
+		Iterator paths = Router.split(path).iterator();
 
-		while (paths.hasMoreTokens()) {
-			path = paths.nextToken();
+		while (paths.hasNext()) {
+			path = (String) paths.next();
 			Chain chain = (Chain) map.get(path);
 
 			if (chain == null) {
@@ -849,6 +1226,10 @@ public class Daemon implements Runnable {
 
 			final Service old = (Service) chain.put(service);
 
+			if(rule != null) {
+				chain.micro(new Micro.Rule(rule));
+			}
+
 			if(host) {
 				final String p = path;
 				Thread.currentThread().setContextClassLoader(archive);
@@ -876,6 +1257,8 @@ public class Daemon implements Runnable {
 				}
 			}
 
+			chain.compile();
+
 			if (verbose)
 				out.println(path + padding(path) + chain);
 
@@ -897,6 +1280,10 @@ public class Daemon implements Runnable {
 				e.printStackTrace(out);
 			}
 		}
+
+		if(map == this.service) {
+			router = new Router(map);
+		}
 	}
 
 	protected String padding(String path) {
@@ -920,13 +1307,13 @@ public class Daemon implements Runnable {
 				final Service service = (Service) chain.get(i);
 
 				if(host) {
-					final HashMap a = this.archive;
+					final Daemon daemon = this;
 					final int j = i;
 					Thread.currentThread().setContextClassLoader(archive);
 					AccessController.doPrivileged(new PrivilegedExceptionAction() {
 						public Object run() throws Exception {
 							if (j != service.index()) {
-								a.remove(archive.name());
+								daemon.publish(archive.name(), null);
 								throw new Exception(service.getClass().getName()
 										+ " with path '" + path + "' has index ["
 										+ service.index() + "] which is too high.");
@@ -938,7 +1325,7 @@ public class Daemon implements Runnable {
 				}
 				else {
 					if (i != service.index()) {
-						this.archive.remove(archive.name());
+						publish(archive.name(), null);
 						throw new Exception(service.getClass().getName()
 								+ " with path '" + path + "' has index ["
 								+ service.index() + "] which is too high.");
@@ -966,17 +1353,63 @@ public class Daemon implements Runnable {
 			host = "content";
 		}
 
+		if(!packs.isEmpty()) {
+			Deploy.Stream blob = blob(host, path);
+
+			if(blob != null) {
+				return blob;
+			}
+		}
+
+		File file = store.file(host, path);
+
+		if(file == null) {
+			file = find(host, path);
+			store.file(host, path, file);
+		}
+
+		if(file == Cache.NONE) {
+			return null;
+		}
+
+		return new Deploy.Big(file);
+	}
+
+	/**
+	 * Resolves the fingerprinted path of a deployed static file.
+	 * @param host
+	 * @param path like /app.js
+	 * @return /app.hash.js or the path if the file has no hash.
+	 */
+	public String asset(String host, String path) {
+		Deploy.Stream stream = content(host, path);
+		int ext = path.lastIndexOf('.');
+
+		if(stream == null || ext < path.lastIndexOf('/')) {
+			return path;
+		}
+
+		String hash = hash(stream);
+
+		if(hash == null) {
+			return path;
+		}
+
+		return path.substring(0, ext) + "." + hash.substring(0, Event.PRINT) + path.substring(ext);
+	}
+
+	private File find(String host, String path) {
 		File file = new File("app" + File.separator + host + File.separator + path);
 
 		if(file.exists() && !file.isDirectory()) {
-			return new Deploy.Big(file);
+			return file;
 		}
 
 		if(this.host) {
 			file = new File("app" + File.separator + "www." + host + File.separator + path);
 
 			if(file.exists() && !file.isDirectory()) {
-				return new Deploy.Big(file);
+				return file;
 			}
 
 			String base = host.substring(host.indexOf('.') + 1, host.length());
@@ -986,54 +1419,50 @@ public class Daemon implements Runnable {
 			file = new File("app" + File.separator + base + File.separator + path);
 
 			if(file.exists() && !file.isDirectory()) {
-				return new Deploy.Big(file);
+				return file;
 			}
 
-			try {
-				String message = "{\"type\": \"host\", \"file\": \"" + host + ".jar\"}";
-				String ok = (String) send(message);
-
-				if(ok.equals("OK")) {
-					file = new File("app" + File.separator + domain + path);
+			if(decide(host + ".jar")) {
+				file = new File("app" + File.separator + domain + path);
 
-					if(file.exists() && !file.isDirectory()) {
-						return new Deploy.Big(file);
-					}
+				if(file.exists() && !file.isDirectory()) {
+					return file;
 				}
 			}
-			catch(Exception e) {
-				e.printStackTrace();
-			}
 		}
 
-		return null;
+		return Cache.NONE;
 	}
 
 	protected Chain chain(Event event) {
-		if(host) {
-			return chain(event.query().header("host"), event.query().path(), event.push());
-		}
-		else {
-			return chain("content", event.query().path(), event.push());
-		}
+		return chain(event, event.query().path());
 	}
 	
 	public Chain chain(Event event, String path) {
 		if(host) {
-			return chain(event.query().header("host"), path, event.push());
+			return chain(event.query().header("host"), path, event.push(), event.query().paths());
 		}
 		else {
-			return chain("content", path, event.push());
+			return chain("content", path, event.push(), event.query().paths());
 		}
 	}
 
 	protected Chain chain(String host, String path, boolean wakeup) {
-		synchronized (this.service) {
-			Chain chain = (Chain) this.service.get(path);
+		return chain(host, path, wakeup, null);
+	}
 
-			if (chain != null) {
-				return chain;
-			}
+	/**
+	 * @param host
+	 * @param path
+	 * @param wakeup
+	 * @param captures filled with the :name segments of the route, can be null.
+	 * @return the chain or null.
+	 */
+	protected Chain chain(String host, String path, boolean wakeup, Hash captures) {
+		Chain chain = router.find(path, captures);
+
+		if (chain != null) {
+			return chain;
 		}
 
 		if(!this.host) {
@@ -1043,66 +1472,40 @@ public class Daemon implements Runnable {
 			return null;
 		}
 
-		synchronized (this.archive) {
-			if(this.host) {
-				Deploy.Archive archive = (Deploy.Archive) this.archive.get(host + ".jar");
+		Routes routes = this.routes;
 
-				if(archive == null) {
-					archive = (Deploy.Archive) this.archive.get("www." + host + ".jar");
-				}
+		if(this.host) {
+			Deploy.Archive archive = routes.host(host);
 
-				if(archive == null) {
-					String base = host.substring(host.indexOf('.') + 1, host.length());
+			if(archive == null && decide(host + ".jar")) {
+				archive = (Deploy.Archive) routes.archive.get(domain + ".jar");
+			}
 
-					//System.out.println(base);
+			if(archive != null) {
+				chain = archive.router().find(path, captures);
 
-					archive = (Deploy.Archive) this.archive.get(base + ".jar");
+				if (chain != null) {
+					return chain;
+				}
+			}
+		}
+		else {
+			for(int i = 0; i < routes.content.length; i++) {
+				Deploy.Archive archive = routes.content[i];
 
-					if(archive == null) {
-						try {
-							String message = "{\"type\": \"host\", \"file\": \"" + host + ".jar\"}";
-							String ok = (String) send(message);
+				chain = archive.router().find(path, captures);
 
-							if(ok.equals("OK")) {
-								archive = (Deploy.Archive) this.archive.get(domain + ".jar");
-							}
-						}
-						catch(Exception e) {
-							e.printStackTrace();
-						}
-					}
+				if (chain != null) {
+					return chain;
 				}
-
-				if(archive != null) {
-					Chain chain = (Chain) archive.chain().get(path);
+				else if(wakeup) {
+					chain = archive.router().find("null", captures);
 
 					if (chain != null) {
 						return chain;
 					}
 				}
 			}
-			else {
-				Iterator it = this.archive.values().iterator();
-
-				while (it.hasNext()) {
-					Deploy.Archive archive = (Deploy.Archive) it.next();
-
-					if (archive.host().equals(host)) {
-						Chain chain = (Chain) archive.chain().get(path);
-
-						if (chain != null) {
-							return chain;
-						}
-						else if(wakeup) {
-							chain = (Chain) archive.chain().get("null");
-							
-							if (chain != null) {
-								return chain;
-							}
-						}
-					}
-				}
-			}
 		}
 
 		return null;
@@ -1135,11 +1538,23 @@ public class Daemon implements Runnable {
 						+ "- worker(s)  \t" + threads + " thread"
 						+ (threads > 1 ? "s" : "") + "\n" + 
 						"- session    \t" + cookie + " characters\n" + 
+						"- sessions   \t" + session.max() + " per host\n" + 
+						"- vault      \t" + (session.vault() == null ? "" : session.vault().file().getPath()) + "\n" + 
+						"- seal       \t" + (seal == null ? "" : seal.toString()) + "\n" + 
+						"- cluster    \t" + (cluster != null) + "\n" + 
+						"- gossip     \t" + (cluster == null ? 0 : cluster.gossip()) + " ms.\n" + 
+						"- overflow   \t" + (forward == null ? 0 : overflow) + " ms.\n" + 
+						"- replicate  \t" + (session.replica() != null) + "\n" + 
 						"- timeout    \t"
 						+ decimal.format((double) timeout / 60000) + " minute"
 						+ (timeout / 60000 > 1 ? "s" : "") + "\n"
 						+ "- IO timeout \t" + delay + " ms." + "\n"
 						+ "- IO buffer  \t" + size + " bytes\n"
+						+ "- store      \t" + store.limit() + " bytes\n"
+						+ "- policy     \t" + policy + "\n"
+						+ "- micro      \t" + micro.limit() + " bytes\n"
+						+ "- pack       \t" + pack + "\n"
+						+ "- dedupe     \t" + dedupe + "\n"
 						+ "- debug      \t" + debug + "\n"
 						+ "- live       \t" + live
 						);
@@ -1150,7 +1565,8 @@ public class Daemon implements Runnable {
 				out.println("- host       \t" + host);
 
 				if(host)
-					out.println("- domain     \t" + domain);
+					out.println("- domain     \t" + domain + "\n"
+							+ "- decide     \t" + decide / 1000 + "/" + decide_miss / 1000 + " seconds");
 			}
 
 			if (pass != null && pass.length() > 0 || host) {
@@ -1190,6 +1606,8 @@ public class Daemon implements Runnable {
 						}
 					}
 				}
+
+				Deploy.sweep(this);
 			}
 
 			/*
@@ -1225,7 +1643,25 @@ public class Daemon implements Runnable {
 							out.println("<tr><td>" + worker.index() + "</td><td>" + (worker.busy() ? "1" : "0") + "</td><td>" + worker.lock() + "</td><td>" + (worker.event() == null ? "" : "" + worker.event().index()) + "</td></tr>");
 						}
 
-						out.println("</table></td></tr><tr><td colspan=\"3\" align=\"center\">selected: " + selected + ", valid: " + valid + ", accept: " + accept + ", readwrite: " + readwrite + "</td></tr></table>");
+						out.println("</table></td></tr><tr><td colspan=\"3\" align=\"center\">selected: " + selected + ", valid: " + valid + ", accept: " + accept + ", readwrite: " + readwrite + "</td></tr>");
+						out.println("<tr><td colspan=\"3\" align=\"center\">store " + store + "</td></tr>");
+						out.println("<tr><td colspan=\"3\" align=\"center\">micro " + micro + "</td></tr>");
+						out.println("<tr><td colspan=\"3\" align=\"center\">session " + session + "</td></tr>");
+
+						if(cluster != null) {
+							out.println("<tr><td colspan=\"3\" align=\"center\">cluster " + cluster + "</td></tr>");
+							it = cluster.members().iterator();
+
+							while(it.hasNext()) {
+								out.println("<tr><td colspan=\"3\" align=\"center\">member " + it.next() + "</td></tr>");
+							}
+						}
+
+						if(forward != null) {
+							out.println("<tr><td colspan=\"3\" align=\"center\">forward " + forward + "</td></tr>");
+						}
+
+						out.println("</table>");
 						out.println("</pre>");
 					}
 				};
@@ -1243,7 +1679,7 @@ public class Daemon implements Runnable {
 				Service api = new Service() {
 					public String path() { return "/api"; }
 					public void filter(Event event) throws Event, Exception {
-						Iterator it = archive.values().iterator();
+						Iterator it = routes.archive.values().iterator();
 						Output out = event.output();
 						out.println("<pre>");
 						while(it.hasNext()) {
@@ -1336,10 +1772,14 @@ public class Daemon implements Runnable {
 								}
 							}
 
-							if (key.isReadable() && event.push()) {
+							if (event.pending()) {
+								event.resume();
+							} else if (key.isReadable() && event.push()) {
 								event.disconnect(null);
 							} else if (worker == null) {
-								match(event, null);
+								if(forward == null || !overflow(event)) {
+									match(event, null);
+								}
 							} else {
 								worker.wakeup(false);
 							}
@@ -1399,6 +1839,7 @@ public class Daemon implements Runnable {
 		Worker worker = (Worker) workers.next();
 
 		if (worker == null) {
+			event.queued(System.currentTimeMillis());
 			queue.add(event);
 			return null;
 		}
@@ -1407,6 +1848,7 @@ public class Daemon implements Runnable {
 			worker = (Worker) workers.next();
 
 			if (worker == null) {
+				event.queued(System.currentTimeMillis());
 				queue.add(event);
 				return null;
 			}
@@ -1415,15 +1857,63 @@ public class Daemon implements Runnable {
 		return worker;
 	}
 
+	/*
+	 * How long the oldest queued event has waited; the ones that a worker
+	 * already picked up are removed first, like next() does.
+	 */
+	private synchronized long lag() {
+		while(queue.size() > 0 && ((Event) queue.getFirst()).worker() != null) {
+			queue.remove(0);
+		}
+
+		if(queue.isEmpty()) {
+			return 0;
+		}
+
+		return System.currentTimeMillis() - ((Event) queue.getFirst()).queued();
+	}
+
+	/*
+	 * Forwards the connection to the least loaded member if the queue
+	 * waits too long, but never one that was forwarded or comes from a
+	 * member.
+	 */
+	private boolean overflow(Event event) {
+		if(event.forwarded() || lag() < overflow) {
+			return false;
+		}
+
+		Cluster.Member local = member();
+		Cluster.Member member = cluster.lightest(local == null ? 0 : local.load(), 
+				event.channel().socket().getInetAddress());
+
+		if(member == null) {
+			return false;
+		}
+
+		try {
+			forward.add(event.detach(), member);
+		}
+		catch(IOException e) {
+			event.disconnect(e);
+		}
+
+		return true;
+	}
+
 	protected synchronized boolean match(Event event, Worker worker) {
 		boolean wakeup = true;
 
 		if(event != null && worker != null) {
+			if(event.push() && event.landed()) {
+				return true; // woken while this worker was still busy with it
+			}
+
 			event.worker(null);
 			worker.event(null);
 
 			try {
-				event.register(Event.READ);
+				event.register(event.pending() ? Event.WRITE : Event.READ);
 			}
 			catch(CancelledKeyException e) {
 				event.disconnect(e);
@@ -1471,6 +1961,78 @@ public class Daemon implements Runnable {
 		return true;
 	}
 
+	/*
+	 * The deployed archives, copied and replaced as a whole on deploy so 
+	 * requests can read them without locks. Hosts are indexed by their 
+	 * name and without www. so a request host is found in one lookup, or 
+	 * two if it falls back to the parent domain.
+	 */
+	static class Routes {
+		private HashMap archive, hosts;
+		private Deploy.Archive[] content;
+		private boolean wild;
+
+		Routes(HashMap archive) {
+			this.archive = archive;
+
+			LinkedList list = new LinkedList();
+			Iterator it = archive.values().iterator();
+
+			hosts = new HashMap();
+
+			while(it.hasNext()) {
+				Deploy.Archive a = (Deploy.Archive) it.next();
+
+				if(a.host().equals("content")) {
+					list.add(a);
+				}
+				else if(a.host().startsWith("www.")) {
+					hosts.put(a.host().substring(4), a);
+				}
+			}
+
+			it = archive.values().iterator();
+
+			while(it.hasNext()) {
+				Deploy.Archive a = (Deploy.Archive) it.next();
+				hosts.put(a.host(), a);
+				wild |= a.host().startsWith("*.");
+			}
+
+			content = (Deploy.Archive[]) list.toArray(new Deploy.Archive[list.size()]);
+		}
+
+		/*
+		 * The archive of the host, the www. host, the closest *. host or 
+		 * the parent domain.
+		 */
+		Deploy.Archive host(String host) {
+			Deploy.Archive archive = (Deploy.Archive) hosts.get(host);
+
+			if(archive != null) {
+				return archive;
+			}
+
+			int dot = host.indexOf('.');
+
+			if(wild) {
+				for(int i = dot; i > -1; i = host.indexOf('.', i + 1)) {
+					archive = (Deploy.Archive) hosts.get("*" + host.substring(i));
+
+					if(archive != null) {
+						return archive;
+					}
+				}
+			}
+
+			if(dot > -1) {
+				archive = (Deploy.Archive) hosts.get(host.substring(dot + 1));
+			}
+
+			return archive;
+		}
+	}
+
 	class Filter implements FilenameFilter {
 		public boolean accept(File dir, String name) {
 			if (name.endsWith(".jar")) {
@@ -1519,20 +2081,21 @@ public class Daemon implements Runnable {
 					Iterator it = null;
 
 					if(timeout > 0) {
-						it = session.values().iterator();
+						it = session.expire(timeout).iterator();
 
 						while (it.hasNext()) {
 							Session se = (Session) it.next();
 
-							if (System.currentTimeMillis() - se.date() > timeout) {
-								it.remove();
+							try {
 								se.remove();
+							} catch (Exception e) {
+								e.printStackTrace(out);
+							}
 
-								if (Event.LOG) {
-									if (debug)
-										out.println("session timeout "
-												+ se.key());
-								}
+							if (Event.LOG) {
+								if (debug)
+									out.println("session timeout "
+											+ se.key());
 							}
 						}
 					}
@@ -4,10 +4,14 @@ import java.io.*;
 import java.lang.reflect.ReflectPermission;
 import java.math.BigInteger;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.security.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.*;
+import java.util.zip.*;
 
 import javax.net.ssl.SSLPermission;
 
@@ -193,12 +197,75 @@ public class Deploy extends Service {
 	}
 
 	protected static String deploy(Daemon daemon, File file, Event event) throws Exception {
-		Archive archive = new Archive(daemon, file, event);
+		synchronized (Deploy.class) {
+			deploying++;
+		}
+
+		try {
+			Archive archive = new Archive(daemon, file, event);
+
+			daemon.chain(archive);
+			daemon.verify(archive);
+
+			return archive.name();
+		}
+		finally {
+			synchronized (Deploy.class) {
+				deploying--;
+			}
+
+			if(event != null) {
+				sweep(daemon);
+			}
+		}
+	}
+
+	private static int deploying;
+
+	/**
+	 * Removes the blobs that no pack links to anymore, skipped while 
+	 * another deploy is writing blobs.
+	 * @param daemon
+	 */
+	protected static synchronized void sweep(Daemon daemon) {
+		File[] files = new File(Deploy.path + ".blob").listFiles();
 
-		daemon.chain(archive);
-		daemon.verify(archive);
+		if(!daemon.dedupe || deploying > 0 || files == null) {
+			return;
+		}
+
+		HashSet used = new HashSet();
+		Iterator it = daemon.packs().iterator();
+
+		while(it.hasNext()) {
+			Iterator streams = ((Pack) it.next()).index.values().iterator();
+
+			while(streams.hasNext()) {
+				Object stream = streams.next();
+
+				if(stream instanceof Big) {
+					String name = ((Big) stream).file.getName();
+					used.add(name);
+					used.add(name + ".gz");
+				}
+			}
+		}
 
-		return archive.name();
+		int swept = 0;
+
+		for(int i = 0; i < files.length; i++) {
+			if(!used.contains(files[i].getName())) {
+				files[i].setWritable(true);
+
+				if(files[i].delete()) {
+					swept++;
+				}
+			}
+		}
+
+		if(daemon.verbose && swept > 0) {
+			daemon.out.println("Swept " + swept + " blob" + (swept == 1 ? "" : "s") + ".");
+		}
 	}
 
 	/**
@@ -211,6 +278,7 @@ public class Deploy extends Service {
 		private AccessControlContext access;
 		private HashSet service;
 		private HashMap chain;
+		private Router router = Router.NONE;
 		private String name;
 		private String host;
 		private long date;
@@ -275,6 +343,10 @@ public class Deploy extends Service {
 			}
 
 			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			LinkedList files = new LinkedList();
+			Pack pack = daemon.pack || daemon.dedupe ? new Pack(host, daemon.pack) : null;
+			Policy.Rule[] rules = null;
 			JarEntry entry = null;
 			int i = 0;
 
@@ -286,8 +358,19 @@ public class Deploy extends Service {
 
 					String name = name(entry.getName());
 					classes.add(new Small(name, data));
+				} else if (entry.getName().equals("META-INF/cache.txt")) {
+					rules = Policy.parse(in); // JarInput ignores close
+				} else if (daemon.pack && !entry.isDirectory() && entry.getSize() >= 0 && entry.getSize() <= PACK) {
+					pack.add("/" + entry.getName(), in, entry.getTime(), digest);
+				} else if (daemon.dedupe && !entry.isDirectory()) {
+					File blob = blob(in, entry.getTime(), digest);
+					daemon.store().hash(blob, blob.getName());
+					pack.link("/" + entry.getName(), blob);
 				} else if (!entry.isDirectory()) {
-					Big.write(host, "/" + entry.getName(), entry, in);
+					File big = Big.write(host, "/" + entry.getName(), entry, new DigestInputStream(in, digest));
+					daemon.store().remove(big);
+					daemon.store().hash(big, hex(digest.digest()));
+					files.add(big);
 				}
 
 				if(event != null) {
@@ -303,6 +386,15 @@ public class Deploy extends Service {
 				}
 			}
 
+			compress(files);
+
+			if(pack != null) {
+				pack.done();
+			}
+
+			daemon.pack(host, pack);
+			daemon.policy().rules(host, rules);
+
 			int length = classes.size();
 			String missing = "";
 			Small small = null;
@@ -414,6 +506,17 @@ public class Deploy extends Service {
 			return chain;
 		}
 
+		/**
+		 * @return the routes of the chains, built on deploy.
+		 */
+		protected Router router() {
+			return router;
+		}
+
+		protected void router(Router router) {
+			this.router = router;
+		}
+
 		protected HashSet service() {
 			return service;
 		}
@@ -423,6 +526,466 @@ public class Deploy extends Service {
 		}
 	}
 
+	/*
+	 * Smaller files are not worth compressing.
+	 */
+	static int COMPRESS = 256;
+
+	/**
+	 * Writes gzip siblings of compressible resources in parallel, gzip 
+	 * files that came with the archive are used as they are. The sibling 
+	 * gets the date of the original, otherwise it is not served.
+	 * @param files
+	 * @throws Exception
+	 */
+	static void compress(List files) throws Exception {
+		HashSet paths = new HashSet();
+		Iterator it = files.iterator();
+
+		while(it.hasNext()) {
+			paths.add(((File) it.next()).getPath());
+		}
+
+		LinkedList tasks = new LinkedList();
+		it = files.iterator();
+
+		while(it.hasNext()) {
+			final File file = (File) it.next();
+			String path = file.getPath();
+
+			if(path.endsWith(".gz")) {
+				File original = new File(path.substring(0, path.length() - 3));
+
+				if(paths.contains(original.getPath())) {
+					file.setLastModified(original.lastModified());
+				}
+			}
+			else if(!paths.contains(path + ".gz")) {
+				final File gzip = new File(path + ".gz");
+
+				if(compressible(path) && file.length() >= COMPRESS) {
+					tasks.add(new Callable() {
+						public Object call() throws Exception {
+							compress(file, gzip);
+							return null;
+						}
+					});
+				}
+				else {
+					gzip.delete();
+				}
+			}
+		}
+
+		invoke(tasks);
+	}
+
+	/**
+	 * Runs the tasks on one thread per core.
+	 * @param tasks
+	 * @return the results in task order.
+	 * @throws Exception
+	 */
+	static List invoke(List tasks) throws Exception {
+		LinkedList results = new LinkedList();
+
+		if(tasks.isEmpty()) {
+			return results;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+		try {
+			Iterator it = pool.invokeAll(tasks).iterator();
+
+			while(it.hasNext()) {
+				results.add(((Future) it.next()).get());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		return results;
+	}
+
+	/*
+	 * Written to a temporary file first since shared blobs can be 
+	 * compressed by two deploys at once.
+	 */
+	private static void compress(File file, File gzip) throws IOException {
+		File temp = File.createTempFile("gzip", ".tmp", gzip.getAbsoluteFile().getParentFile());
+		InputStream in = new FileInputStream(file);
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 8192) {{
+			def.setLevel(Deflater.BEST_COMPRESSION);
+		}};
+
+		try {
+			pipe(in, out, 8192);
+		}
+		finally {
+			in.close();
+			out.close();
+		}
+
+		if(temp.length() < file.length()) {
+			temp.setLastModified(file.lastModified());
+
+			if(temp.renameTo(gzip)) {
+				return;
+			}
+		}
+
+		temp.delete();
+		gzip.delete();
+	}
+
+	/**
+	 * Stores the resource once by content hash in app/.blob, the first 
+	 * deploy decides the date. Blobs are read-only and never rewritten, 
+	 * {@link #sweep(Daemon)} removes them when no archive links to them.
+	 * @param in
+	 * @param date
+	 * @param digest
+	 * @return the blob, named by its hash.
+	 * @throws IOException
+	 */
+	static File blob(InputStream in, long date, MessageDigest digest) throws IOException {
+		File dir = new File(Deploy.path + ".blob");
+		dir.mkdirs();
+
+		File temp = File.createTempFile("blob", ".tmp", dir);
+		OutputStream out = new FileOutputStream(temp);
+
+		try {
+			pipe(new DigestInputStream(in, digest), out, 8192);
+		}
+		finally {
+			out.close();
+		}
+
+		File blob = new File(dir, hex(digest.digest()));
+
+		if(blob.exists()) {
+			temp.delete();
+		}
+		else {
+			temp.setLastModified(date);
+			temp.setReadOnly();
+
+			if(!temp.renameTo(blob)) {
+				temp.delete();
+
+				if(!blob.exists()) {
+					throw new IOException("Could not store " + blob + ".");
+				}
+			}
+		}
+
+		return blob;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the content type is text.
+	 */
+	static boolean compressible(String name) {
+		String type = Event.MIME.content(name, "");
+
+		return type.startsWith("text/") || type.endsWith("javascript") || 
+				type.endsWith("json") || type.endsWith("xml");
+	}
+
+	/**
+	 * @param file
+	 * @return the modified date in whole seconds, like {@link Big#date()}.
+	 */
+	static long date(File file) {
+		long date = file.lastModified();
+		return date - date % 1000;
+	}
+
+	/*
+	 * Resources larger than this are extracted to disk in pack mode.
+	 */
+	static int PACK = 1048576;
+
+	/**
+	 * The resources of one archive written after each other in one mapped 
+	 * file with a path index, instead of one file per resource. Resources 
+	 * stored as shared blobs are indexed here too.
+	 */
+	static class Pack {
+		private HashMap index;
+		private File file, temp;
+		private OutputStream out;
+		private MappedByteBuffer map;
+		private long length;
+
+		/**
+		 * @param host
+		 * @param map false if only blobs are linked.
+		 * @throws IOException
+		 */
+		Pack(String host, boolean map) throws IOException {
+			index = new HashMap();
+
+			if(map) {
+				file = new File(Deploy.path + host + ".pack");
+				temp = new File(Deploy.path + host + ".pack.tmp");
+				out = new BufferedOutputStream(new FileOutputStream(temp), 65536);
+			}
+		}
+
+		void link(String name, File blob) {
+			index.put(name, new Big(blob, name));
+		}
+
+		/*
+		 * The size in the jar is only a hint, so the copy is capped.
+		 */
+		void add(String name, InputStream in, long date, MessageDigest digest) throws IOException {
+			long read = pipe(new DigestInputStream(in, digest), out, 8192, PACK);
+			index.put(name, new Blob(this, name, length, read, date, hex(digest.digest())));
+			length += read;
+		}
+
+		/*
+		 * Appends gzip variants in parallel and maps the file.
+		 */
+		void done() throws Exception {
+			link();
+
+			if(out == null) {
+				return;
+			}
+
+			out.close();
+			map(temp);
+
+			LinkedList tasks = new LinkedList(), blobs = new LinkedList();
+			Iterator it = index.values().iterator();
+
+			while(it.hasNext()) {
+				Object next = it.next();
+
+				if(!(next instanceof Blob)) {
+					continue;
+				}
+
+				final Blob blob = (Blob) next;
+				Blob gzip = (Blob) index.get(blob.name + ".gz");
+
+				if(gzip != null) {
+					gzip.date = blob.date;
+				}
+				else if(compressible(blob.name) && blob.length >= COMPRESS) {
+					blobs.add(blob);
+					tasks.add(new Callable() {
+						public Object call() throws Exception {
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							OutputStream out = new GZIPOutputStream(bytes, 8192) {{
+								def.setLevel(Deflater.BEST_COMPRESSION);
+							}};
+							ByteBuffer body = blob.body();
+							byte[] data = new byte[8192];
+
+							while(body.hasRemaining()) {
+								int length = Math.min(data.length, body.remaining());
+								body.get(data, 0, length);
+								out.write(data, 0, length);
+							}
+
+							out.close();
+							return bytes.size() < blob.length ? bytes.toByteArray() : null;
+						}
+					});
+				}
+			}
+
+			if(!tasks.isEmpty()) {
+				Iterator results = invoke(tasks).iterator();
+				out = new BufferedOutputStream(new FileOutputStream(temp, true), 65536);
+				it = blobs.iterator();
+
+				while(results.hasNext()) {
+					Blob blob = (Blob) it.next();
+					byte[] data = (byte[]) results.next();
+
+					if(data != null) {
+						out.write(data);
+						index.put(blob.name + ".gz", new Blob(this, blob.name + ".gz", length, data.length, blob.date, blob.hash));
+						length += data.length;
+					}
+				}
+
+				out.close();
+			}
+
+			if(!temp.renameTo(file)) {
+				throw new IOException("Could not rename " + temp + ".");
+			}
+
+			map(file);
+		}
+
+		/*
+		 * Gives linked blobs their gzip sibling in the blob folder, shipped 
+		 * gzip files are copied there with the date of the original.
+		 */
+		private void link() throws Exception {
+			LinkedList tasks = new LinkedList();
+			Iterator it = new LinkedList(index.values()).iterator();
+
+			while(it.hasNext()) {
+				Object next = it.next();
+
+				if(!(next instanceof Big)) {
+					continue;
+				}
+
+				final Big big = (Big) next;
+				final File gzip = new File(big.file.getPath() + ".gz");
+				Object shipped = index.get(big.name + ".gz");
+
+				if(shipped instanceof Big) {
+					if(!gzip.exists()) {
+						File temp = File.createTempFile("gzip", ".tmp", gzip.getAbsoluteFile().getParentFile());
+						InputStream in = new FileInputStream(((Big) shipped).file);
+						OutputStream out = new FileOutputStream(temp);
+
+						try {
+							pipe(in, out, 8192);
+						}
+						finally {
+							in.close();
+							out.close();
+						}
+
+						temp.setLastModified(big.file.lastModified());
+
+						if(!temp.renameTo(gzip)) {
+							temp.delete();
+						}
+					}
+
+					index.put(big.name + ".gz", new Big(gzip, big.name + ".gz"));
+				}
+				else if(!gzip.exists() && compressible(big.name) && big.length() >= COMPRESS) {
+					tasks.add(new Callable() {
+						public Object call() throws Exception {
+							compress(big.file, gzip);
+							return null;
+						}
+					});
+				}
+			}
+
+			invoke(tasks);
+		}
+
+		private void map(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+
+			try {
+				map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.getChannel().size());
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * @param path
+		 * @return the resource or null.
+		 */
+		Stream get(String path) {
+			Stream stream = (Stream) index.get(path);
+
+			if(stream == null && path.endsWith(".gz")) {
+				Object big = index.get(path.substring(0, path.length() - 3));
+
+				if(big instanceof Big) {
+					File gzip = new File(((Big) big).file.getPath() + ".gz");
+
+					if(gzip.exists()) {
+						return new Big(gzip, path);
+					}
+				}
+			}
+
+			return stream;
+		}
+
+		int size() {
+			return index.size();
+		}
+
+		long length() {
+			return length;
+		}
+
+		public String toString() {
+			return (file == null ? "links" : file.toString()) + " " + index.size() + " " + length;
+		}
+	}
+
+	/**
+	 * One resource in a {@link Pack}.
+	 */
+	static class Blob implements Stream {
+		private Pack pack;
+		private String name, hash;
+		private long offset, length, date;
+
+		Blob(Pack pack, String name, long offset, long length, long date, String hash) {
+			this.pack = pack;
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.date = date - date % 1000;
+			this.hash = hash;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * @return a private view of the mapped resource.
+		 */
+		ByteBuffer body() {
+			ByteBuffer body = pack.map.duplicate();
+			body.position((int) offset);
+			body.limit((int) (offset + length));
+			return body.slice();
+		}
+
+		String hash() {
+			return hash;
+		}
+
+		public InputStream input() {
+			byte[] data = new byte[(int) length];
+			body().get(data);
+			return new ByteArrayInputStream(data);
+		}
+
+		public FileChannel channel() {
+			return null;
+		}
+
+		public void close() {}
+
+		public long length() {
+			return length;
+		}
+
+		public long date() {
+			return date;
+		}
+	}
+
 	static class Big implements Stream {
 		private File file;
 		private FileInputStream in;
@@ -437,8 +1000,16 @@ public class Deploy extends Service {
 		}
 		 */
 		public Big(File file) {
+			this(file, file.getName());
+		}
+
+		/**
+		 * @param file
+		 * @param name of the resource if the file is a blob.
+		 */
+		Big(File file, String name) {
 			long date = file.lastModified();
-			this.name = file.getName();
+			this.name = name;
 			this.file = file;
 			this.date = date - date % 1000;
 		}
@@ -449,9 +1020,9 @@ public class Deploy extends Service {
 
 			new File(root + path).mkdirs();
 			File file = new File(root + name);
-			file.createNewFile();
-						
-			OutputStream out = new FileOutputStream(file);
+			File temp = new File(root + name + ".tmp");
+
+			OutputStream out = new FileOutputStream(temp);
 
 			pipe(in, out);
 
@@ -459,8 +1030,20 @@ public class Deploy extends Service {
 			out.close();
 
 			//System.out.println(name + " " + new Date(entry.getTime()));
-			file.setLastModified(entry.getTime());
-			
+			temp.setLastModified(entry.getTime());
+
+			/*
+			 * The cache may have the old file mapped, so it's replaced
+			 * instead of rewritten; the mapping keeps the old bytes.
+			 */
+			if(!temp.renameTo(file)) {
+				file.delete();
+
+				if(!temp.renameTo(file)) {
+					throw new IOException("Could not replace " + file + ".");
+				}
+			}
+
 			return file;
 		}
 
@@ -468,6 +1051,10 @@ public class Deploy extends Service {
 			return name;
 		}
 
+		File file() {
+			return file;
+		}
+
 		public InputStream input() {
 			try {
 				in = new FileInputStream(file);
@@ -477,6 +1064,15 @@ public class Deploy extends Service {
 			}
 		}
 
+		public FileChannel channel() {
+			try {
+				in = new FileInputStream(file);
+				return in.getChannel();
+			} catch (FileNotFoundException e) {
+				return null;
+			}
+		}
+
 		public void close() {
 			try {
 				in.close();
@@ -518,6 +1114,10 @@ public class Deploy extends Service {
 			return in;
 		}
 
+		public FileChannel channel() {
+			return null;
+		}
+
 		public void close() {
 			try {
 				in.close();
@@ -544,6 +1144,10 @@ public class Deploy extends Service {
 	static interface Stream {
 		public String name();
 		public InputStream input();
+		/**
+		 * @return the file to transfer from or null if only the stream is available.
+		 */
+		public FileChannel channel();
 		public void close();
 		public long length();
 		public long date();
@@ -67,11 +67,15 @@ public class Event extends Throwable implements Chain.Link {
 
 	private Daemon daemon;
 	private Worker worker;
+	private Output.Transfer transfer;
+	private Micro.Flight flight;
+	private Chain.Invoker invoker;
+	private Deploy.Archive archive;
 
 	private int index, interest;
 	private String remote;
-	private boolean close;
-	private long touch;
+	private boolean close, forwarded;
+	private long touch, queued;
 
 	/*
 	 * Since variable chunk length on HTTP requests implementations
@@ -153,6 +157,53 @@ public class Event extends Throwable implements Chain.Link {
 		return channel;
 	}
 
+	/**
+	 * @return if the connection came from or is from another node.
+	 */
+	protected boolean forwarded() {
+		return forwarded;
+	}
+
+	/**
+	 * @return when the event was put in the queue.
+	 */
+	protected long queued() {
+		return queued;
+	}
+
+	protected void queued(long queued) {
+		this.queued = queued;
+	}
+
+	/**
+	 * Lets go of the connection without closing it, so it can be 
+	 * forwarded.
+	 * @return the channel.
+	 */
+	protected SocketChannel detach() {
+		forwarded = true;
+
+		try {
+			key.cancel();
+
+			if(transfer != null) {
+				transfer.close();
+				transfer = null;
+			}
+
+			if(session != null) {
+				session.remove(this);
+			}
+		} catch (Exception e) {
+			e.printStackTrace(daemon.out);
+		}
+		finally {
+			daemon.events.remove(new Integer(index));
+		}
+
+		return channel;
+	}
+
 	protected void log(Object o) {
 		log(o, Event.DEBUG);
 	}
@@ -227,6 +278,7 @@ public class Event extends Throwable implements Chain.Link {
 
 	protected void read() throws IOException {
 		touch();
+		archive = null;
 
 		if(!query.headers()) {
 			disconnect(null);
@@ -240,6 +292,10 @@ public class Event extends Throwable implements Chain.Link {
 		
 		remote = address();
 
+		if(query.header(Forward.HEADER) != null) {
+			forwarded = true;
+		}
+
 		if(query.version() == null || !query.version().equalsIgnoreCase("HTTP/1.1")) {
 			reply.code("505 Not Supported");
 		}
@@ -247,7 +303,9 @@ public class Event extends Throwable implements Chain.Link {
 			reply.code("400 Bad Request");
 		}
 		else {
-			if(!service(daemon.chain(this))) {
+			Chain chain = daemon.chain(this);
+
+			if(!micro(chain) && !service(chain)) {
 				if(daemon.host && query.path().startsWith("/root/")) {
 					reply.code("403 Forbidden");
 					reply.output().print(
@@ -285,34 +343,383 @@ public class Event extends Throwable implements Chain.Link {
 	}
 
 	protected boolean content() throws IOException {
-		Deploy.Stream stream = daemon.content(query);
+		String host = daemon.host ? query.header("host") : "content";
+		String path = query.path(), print = null;
+		Cache.Entry entry = null;
+		Deploy.Stream stream = null;
+		int dot = print(path);
+
+		if(dot > -1) {
+			String plain = path.substring(0, dot) + path.substring(dot + PRINT + 1);
+			entry = daemon.store().get(host, plain);
+
+			if(entry == null) {
+				stream = daemon.content(host, plain);
+			}
 
-		if(stream == null)
-			return false;
+			if(entry != null || stream != null) {
+				print = path.substring(dot + 1, dot + PRINT + 1);
+				path = plain;
+			}
+		}
+
+		if(entry == null && stream == null) {
+			entry = daemon.store().get(host, path);
+
+			if(entry == null) {
+				stream = daemon.content(host, path);
 
-		String type = MIME.content(query.path(), "application/octet-stream");
+				if(stream == null)
+					return false;
+			}
+		}
+
+		if(entry == null) {
+			entry = daemon.store().put(host, path, stream, worker.date());
+		}
+
+		String type = entry == null ? MIME.content(path, "application/octet-stream") : entry.type();
+		String hash = entry == null ? daemon.hash(stream) : entry.hash();
+		String tag = hash == null ? null : "\"" + hash + "\"";
 
 		reply.type(type);
-		reply.modified(stream.date());
+		reply.modified(entry == null ? stream.date() : entry.date());
 
-		if(query.modified() == 0 || query.modified() < reply.modified()) {
-			try {
-				Deploy.pipe(stream.input(), reply.output(stream.length()));
+		if(print != null) {
+			if(hash != null && hash.startsWith(print)) {
+				reply.header("Cache-Control", "public, max-age=" + YEAR + ", immutable");
+			}
+			else {
+				reply.header("Cache-Control", "no-cache");
+			}
+		}
+
+		String none = query.header("if-none-match");
+		boolean fresh = none == null ? query.modified() > 0 && query.modified() >= reply.modified() : match(none, hash);
+
+		if(!fresh) {
+			FileChannel file = null;
+			ByteBuffer body = null;
+			long[] ranges = null;
+
+			if(entry != null) {
+				body = entry.body();
+			}
+			else if(stream instanceof Deploy.Blob) {
+				body = ((Deploy.Blob) stream).body();
+			}
+			else if(stream.length() > 0) {
+				file = stream.channel();
+			}
+
+			if(body != null || file != null) {
+				ranges = ranges(body == null ? stream.length() : body.remaining(), tag);
+			}
+
+			if(ranges != null) {
+				if(tag != null) {
+					reply.header("ETag", tag);
+				}
+
+				partial(body, file, ranges, type);
+				return true;
 			}
-			finally {
-				stream.close();
+
+			boolean gzip = gzip(query.header("accept-encoding"));
+
+			if(entry != null) {
+				if(gzip && entry.gzip() != null) {
+					entry = entry.gzip();
+				}
+
+				reply.head(entry.head());
+				reply.output(entry.length()).transfer(entry.body());
+
+				if(Event.LOG) {
+					log("cached " + type, VERBOSE);
+				}
+
+				return true;
+			}
+
+			boolean encoded = false;
+
+			if(Deploy.compressible(stream.name())) {
+				Deploy.Stream variant = daemon.content(host, path + ".gz");
+
+				if(variant != null && variant.date() == stream.date()) {
+					reply.header("Vary", "Accept-Encoding");
+
+					if(gzip) {
+						reply.header("Content-Encoding", "gzip");
+
+						if(file != null) {
+							file.close();
+						}
+
+						stream = variant;
+						encoded = true;
+
+						if(stream instanceof Deploy.Blob) {
+							body = ((Deploy.Blob) stream).body();
+						}
+						else {
+							file = stream.channel();
+						}
+					}
+				}
+			}
+
+			if((body != null || file != null) && !encoded) {
+				reply.header("Accept-Ranges", "bytes");
+			}
+
+			if(tag != null) {
+				reply.header("ETag", encoded ? "\"" + hash + "-gzip\"" : tag);
+			}
+
+			long length = stream.length();
+
+			if(body != null) {
+				reply.output(length).transfer(body);
+			}
+			else if(file == null) {
+				try {
+					Deploy.pipe(stream.input(), reply.output(length));
+				}
+				finally {
+					stream.close();
+				}
+			}
+			else {
+				reply.output(length).transfer(file, 0, length);
 			}
 
 			if(Event.LOG) {
 				log("content " + type, VERBOSE);
 			}
 		} else {
+			if(tag != null) {
+				reply.header("ETag", tag);
+			}
+
 			reply.code("304 Not Modified");
 		}
 
 		return true;
 	}
 
+	/*
+	 * Hex characters of the content hash in fingerprinted paths.
+	 */
+	static int PRINT = 12;
+
+	/*
+	 * Max-age of fingerprinted paths in seconds.
+	 */
+	static int YEAR = 31536000;
+
+	/**
+	 * @param path
+	 * @return the index of the dot before the hash in /name.hash.ext or -1.
+	 */
+	protected static int print(String path) {
+		int ext = path.lastIndexOf('.');
+		int dot = ext - PRINT - 1;
+
+		if(dot < 1 || path.charAt(dot) != '.' || path.lastIndexOf('/') > dot) {
+			return -1;
+		}
+
+		for(int i = dot + 1; i < ext; i++) {
+			char c = path.charAt(i);
+
+			if(!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+				return -1;
+			}
+		}
+
+		return dot;
+	}
+
+	/**
+	 * Resolves the fingerprinted path of a deployed static file, the reply 
+	 * for that path can be cached forever since it changes with the content.
+	 * @param path like /app.js
+	 * @return /app.hash.js or the path if the file has no hash.
+	 */
+	public String asset(String path) {
+		return daemon.asset(daemon.host ? query.header("host") : "content", path);
+	}
+
+	/**
+	 * Weak comparison of If-None-Match, both variants match.
+	 * @param none the If-None-Match header.
+	 * @param hash
+	 * @return true if one tag matches.
+	 */
+	protected static boolean match(String none, String hash) {
+		if(none.trim().equals("*")) {
+			return true;
+		}
+
+		if(hash == null) {
+			return false;
+		}
+
+		StringTokenizer tokenizer = new StringTokenizer(none, ",");
+
+		while (tokenizer.hasMoreTokens()) {
+			String tag = tokenizer.nextToken().trim();
+
+			if(tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+
+			if(tag.equals("\"" + hash + "\"") || tag.equals("\"" + hash + "-gzip\"")) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends the reply from the {@link Micro} cache, or runs the chain and 
+	 * keeps the reply if it can be shared.
+	 * @param chain
+	 * @return false if the path has no micro-cache rule.
+	 * @throws IOException
+	 */
+	protected boolean micro(Chain chain) throws IOException {
+		if(chain == null || query.method() != Query.GET) {
+			return false;
+		}
+
+		Micro micro = daemon.micro();
+		Micro.Rule rule = micro.rule(chain, query.path());
+
+		if(rule == null) {
+			return false;
+		}
+
+		try {
+			query.parse();
+		}
+		catch(Exception e) {
+			return false;
+		}
+
+		String key = rule.key(daemon.host ? query.header("host") : "content", query);
+		Micro.Entry entry = micro.get(key, this);
+
+		if(entry == Micro.WAIT) {
+			if(Event.LOG) {
+				log("micro wait " + key.replace('\n', ' '), VERBOSE);
+			}
+
+			hold();
+			return true;
+		}
+
+		if(entry != null) {
+			if(Event.LOG) {
+				log("micro " + key.replace('\n', ' '), VERBOSE);
+			}
+
+			send(entry);
+			return true;
+		}
+
+		Output output = reply.output;
+
+		output.capture((int) Math.min(micro.limit() / 4, Integer.MAX_VALUE));
+
+		try {
+			service(chain);
+
+			byte[] body = output.captured();
+
+			if(body != null && body.length > 0 && !reply.push() && reply.code().equals("200 OK")) {
+				StringBuilder head = new StringBuilder();
+				String cache = reply.cache();
+
+				head.append("Content-Type: " + reply.type() + Output.EOL);
+				head.append("Content-Length: " + body.length + Output.EOL);
+
+				if(reply.modified() > 0) {
+					head.append("Last-Modified: " + worker.date().format(new Date(reply.modified())) + Output.EOL);
+				}
+
+				Iterator it = reply.headers() == null ? Collections.EMPTY_LIST.iterator() : reply.headers().keySet().iterator();
+
+				while(it.hasNext()) {
+					String name = (String) it.next();
+
+					if(name.equalsIgnoreCase("Set-Cookie")) {
+						return true;
+					}
+
+					if(name.equalsIgnoreCase("Cache-Control")) {
+						cache = "";
+					}
+
+					head.append(name + ": " + reply.headers().get(name) + Output.EOL);
+				}
+
+				entry = new Micro.Entry(rule, head.toString().getBytes(), body, cache);
+			}
+		}
+		finally {
+			output.capture(0);
+
+			Iterator it = micro.land(key, entry).iterator();
+
+			while(it.hasNext()) {
+				((Event) it.next()).reply().wakeup();
+			}
+		}
+
+		return true;
+	}
+
+	private void send(Micro.Entry entry) throws IOException {
+		ByteBuffer body = entry.body();
+
+		reply.head(entry.head());
+		reply.cache(entry.cache());
+		reply.output(body.remaining()).transfer(body);
+	}
+
+	protected void flight(Micro.Flight flight) {
+		this.flight = flight;
+	}
+
+	/**
+	 * @return true if this event was held for a reply that is now done.
+	 */
+	protected boolean landed() {
+		return flight != null && flight.landed();
+	}
+
+	/*
+	 * Sends the reply this event was held for, or runs the chain if it 
+	 * could not be shared.
+	 */
+	private void land() throws IOException {
+		Micro.Entry entry = flight.entry();
+
+		flight = null;
+		reply.output.push = false;
+
+		if(entry != null) {
+			send(entry);
+		}
+		else {
+			service(daemon.chain(this));
+		}
+	}
+
 	protected boolean service(Chain chain) throws IOException {
 		if(chain == null)
 			return false;
@@ -343,12 +750,23 @@ public class Event extends Throwable implements Chain.Link {
 			}
 		}
 
+		if(session != null) {
+			daemon.session().save(session);
+		}
+
 		return true;
 	}
 
 	protected void write() throws IOException {
 		touch();
-		service(daemon.chain(this));
+
+		if(flight != null) {
+			land();
+		}
+		else {
+			service(daemon.chain(this));
+		}
+
 		finish();
 	}
 
@@ -363,6 +781,42 @@ public class Event extends Throwable implements Chain.Link {
 		}
 	}
 
+	protected void transfer(Output.Transfer transfer) {
+		this.transfer = transfer;
+	}
+
+	/**
+	 * @return true if a file transfer is waiting for the socket.
+	 */
+	protected boolean pending() {
+		return transfer != null;
+	}
+
+	/**
+	 * Continues the pending transfer from the selector thread.
+	 */
+	protected void resume() {
+		touch();
+
+		try {
+			if(transfer.send(channel)) {
+				if(Event.LOG) {
+					log("transfer done", DEBUG);
+				}
+
+				transfer.close();
+				transfer = null;
+				register(READ);
+			}
+			else {
+				register(WRITE);
+			}
+		}
+		catch(IOException e) {
+			disconnect(e);
+		}
+	}
+
 	protected void register() throws IOException {
 		if(interest != key.interestOps()) {
 			if(Event.LOG) {
@@ -482,6 +936,11 @@ public class Event extends Throwable implements Chain.Link {
 				key.cancel();
 			}
 
+			if(transfer != null) {
+				transfer.close();
+				transfer = null;
+			}
+
 			if(session != null) {
 				session.remove(this);
 			}
@@ -505,7 +964,27 @@ public class Event extends Throwable implements Chain.Link {
 		}
 	}
 
-	protected final void session(final Service service, Event event) throws Exception {
+	/**
+	 * Finds the session of the cookie, once per chain.
+	 * @return the key of the cookie or null.
+	 * @throws Exception
+	 */
+	protected final String cookie() throws Exception {
+		if(daemon.seal() != null) {
+			session = daemon.seal().open(daemon, shard(), cookie(query.header("cookie"), Seal.NAME));
+
+			if(session == null) {
+				return null;
+			}
+
+			if(Event.LOG) {
+				log("old seal " + session.key(), VERBOSE);
+			}
+
+			session.touch();
+			return session.key();
+		}
+
 		String key = cookie(query.header("cookie"), "key");
 
 		if(key == null && query.method() == Query.GET) {
@@ -518,7 +997,7 @@ public class Event extends Throwable implements Chain.Link {
 		}
 
 		if(key != null) {
-			session = (Session) daemon.session().get(key);
+			session = daemon.session().get(shard(), key);
 
 			if(session != null) {
 				if(Event.LOG) {
@@ -527,61 +1006,297 @@ public class Event extends Throwable implements Chain.Link {
 
 				session.add(this);
 				session.touch();
+			}
+		}
+
+		return key;
+	}
 
-				return;
+	/**
+	 * Creates the session for the first service of a request without one.
+	 * @param service
+	 * @param key of the cookie or null.
+	 * @param index of the service.
+	 * @param notify if the service handles {@link Service#session(Session, int)}.
+	 */
+	protected final void session(Service service, String key, int index, boolean notify) {
+		if(index == 0 && !push()) {
+			session = new Session(daemon, shard());
+
+			if(daemon.seal() != null) {
+				session.key(random(daemon.cookie));
+			}
+			else {
+				session.add(service);
+				session.add(this);
+				session.key(key);
+
+				if(key == null || !daemon.session().add(session)) {
+					do {
+						session.key(random(daemon.cookie));
+					} while (!daemon.session().add(session));
+				}
+			}
+
+			if(Event.LOG) {
+				log("new key " + session.key(), VERBOSE);
 			}
 		}
 
-		int index = 0;
+		if(notify) {
+			try {
+				service.session(session, Service.CREATE);
+			} catch (Exception e) {
+				e.printStackTrace(daemon.out);
+			}
+		}
+	}
 
+	/**
+	 * @return the session shard of this request; the hosted archive or 
+	 * one for all when not hosting.
+	 */
+	protected String shard() {
 		if(daemon.host) {
-			final Deploy.Archive archive = daemon.archive(query().header("host"));
-			try {
-				Thread.currentThread().setContextClassLoader(archive);
+			Deploy.Archive archive = archive();
+
+			if(archive != null && archive.name() != null) {
+				return archive.name();
+			}
+		}
+
+		return "";
+	}
+
+	/**
+	 * @return the archive of the host, resolved once per request.
+	 */
+	protected Deploy.Archive archive() {
+		if(archive == null) {
+			archive = daemon.archive(query.header("host"));
+		}
+
+		return archive;
+	}
+
+	/**
+	 * @return the privileged call to filter this event with, reused 
+	 * for every hosted service.
+	 */
+	protected Chain.Invoker invoker() {
+		if(invoker == null) {
+			invoker = new Chain.Invoker(this);
+		}
+
+		return invoker;
+	}
+
+	/**
+	 * Parses the Range header of a GET, a range is only honoured if 
+	 * If-Range is missing or matches the strong ETag or Last-Modified date.
+	 * @param length of the content.
+	 * @param tag the strong ETag or null.
+	 * @return inclusive start and end pairs, null for the whole content 
+	 * and empty if no range can be satisfied.
+	 */
+	protected long[] ranges(long length, String tag) {
+		String range = query.header("range");
+
+		if(range == null || query.method() != Query.GET) {
+			return null;
+		}
+
+		String match = query.header("if-range");
+
+		if(match != null) {
+			if(match.startsWith("\"") || match.startsWith("W/")) {
+				if(!match.equals(tag)) {
+					return null;
+				}
 			}
-			catch(AccessControlException e) {
-				// recursive chaining fails here, no worries! ;)
+			else {
+				try {
+					if(worker.date().parse(match).getTime() != reply.modified()) {
+						return null;
+					}
+				}
+				catch(ParseException e) {
+					return null;
+				}
 			}
-			Integer i = (Integer) AccessController.doPrivileged(new PrivilegedExceptionAction() {
-				public Object run() throws Exception {
-					return new Integer(service.index());
+		}
+
+		return ranges(range, length);
+	}
+
+	/*
+	 * The most ranges served in one reply.
+	 */
+	static int RANGES = 16;
+
+	/**
+	 * @param range the Range header.
+	 * @param length of the content.
+	 * @return inclusive start and end pairs, null if the header is invalid 
+	 * and empty if no range can be satisfied.
+	 */
+	protected static long[] ranges(String range, long length) {
+		if(!range.startsWith("bytes=")) {
+			return null;
+		}
+
+		StringTokenizer tokenizer = new StringTokenizer(range.substring(6), ",");
+		long[] ranges = new long[tokenizer.countTokens() * 2];
+		int count = 0;
+
+		if(ranges.length == 0 || ranges.length > RANGES * 2) {
+			return null;
+		}
+
+		try {
+			while (tokenizer.hasMoreTokens()) {
+				String part = tokenizer.nextToken().trim();
+				int dash = part.indexOf('-');
+				long start, end;
+
+				if(dash < 0) {
+					return null;
+				}
+
+				if(dash == 0) {
+					long suffix = Long.parseLong(part.substring(1));
+
+					if(suffix <= 0) {
+						continue;
+					}
+
+					start = suffix > length ? 0 : length - suffix;
+					end = length - 1;
 				}
-			}, daemon.control);
+				else {
+					start = Long.parseLong(part.substring(0, dash));
+					end = dash == part.length() - 1 ? Long.MAX_VALUE : Long.parseLong(part.substring(dash + 1));
 
-			index = i.intValue();
+					if(start < 0 || end < start) {
+						return null;
+					}
+
+					if(start >= length) {
+						continue;
+					}
+
+					if(end >= length) {
+						end = length - 1;
+					}
+				}
+
+				ranges[count++] = start;
+				ranges[count++] = end;
+			}
 		}
-		else {
-			index = service.index();
+		catch(NumberFormatException e) {
+			return null;
 		}
 
-		if(index == 0 && !push()) {
-			session = new Session(daemon, event.query().header("host"));
-			session.add(service);
-			session.add(this);
-			session.key(key);
+		long[] result = new long[count];
+		System.arraycopy(ranges, 0, result, 0, count);
+		return result;
+	}
 
-			if(session.key() == null) {
-				do {
-					key = random(daemon.cookie);
-				} while (daemon.session().get(key) != null);
+	/**
+	 * Replies 206 with one range or multipart/byteranges, or 416 if 
+	 * nothing can be satisfied. The parts are sent zero-copy from the 
+	 * cached body or the file.
+	 */
+	private void partial(ByteBuffer body, FileChannel file, long[] ranges, String type) throws IOException {
+		long length = body == null ? file.size() : body.remaining();
 
-				session.key(key);
+		if(ranges.length == 0) {
+			if(file != null) {
+				file.close();
 			}
 
-			//synchronized (daemon.session()) {
-			if(Event.LOG) {
-				log("new key " + session.key(), VERBOSE);
+			reply.header("Content-Range", "bytes */" + length);
+			reply.code("416 Requested Range Not Satisfiable");
+			return;
+		}
+
+		reply.status("206 Partial Content");
+		reply.header("Accept-Ranges", "bytes");
+
+		if(ranges.length == 2) {
+			reply.header("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + length);
+			reply.output(ranges[1] - ranges[0] + 1).transfer(part(body, file, ranges[0], ranges[1]));
+		}
+		else {
+			String boundary = Long.toHexString(random.nextLong());
+			Output.Transfer transfer = null;
+
+			for(int i = 0; i < ranges.length; i += 2) {
+				String head = (i == 0 ? "" : Output.EOL) + "--" + boundary + Output.EOL + 
+						"Content-Type: " + type + Output.EOL + 
+						"Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + length + Output.EOL + Output.EOL;
+				Output.Transfer part = new Output.Transfer(ByteBuffer.wrap(head.getBytes()));
+
+				part.then(part(body, file, ranges[i], ranges[i + 1]));
+				transfer = transfer == null ? part : transfer.then(part);
 			}
 
-			daemon.session().put(session.key(), session);
-			//}
+			transfer.then(new Output.Transfer(ByteBuffer.wrap((Output.EOL + "--" + boundary + "--" + Output.EOL).getBytes())));
+
+			reply.type("multipart/byteranges; boundary=" + boundary);
+			reply.output(transfer.length()).transfer(transfer);
 		}
 
-		try {
-			service.session(session, Service.CREATE);
-		} catch (Exception e) {
-			e.printStackTrace(daemon.out);
+		if(Event.LOG) {
+			log("partial " + type, VERBOSE);
+		}
+	}
+
+	private Output.Transfer part(ByteBuffer body, FileChannel file, long start, long end) {
+		if(body == null) {
+			return new Output.Transfer(file, start, end - start + 1);
+		}
+
+		body = body.duplicate();
+		body.position((int) start);
+		body.limit((int) end + 1);
+		return new Output.Transfer(body);
+	}
+
+	/**
+	 * @param accept the Accept-Encoding header.
+	 * @return true if gzip is accepted.
+	 */
+	protected static boolean gzip(String accept) {
+		if(accept == null) {
+			return false;
 		}
+
+		StringTokenizer tokenizer = new StringTokenizer(accept, ",");
+
+		while (tokenizer.hasMoreTokens()) {
+			String part = tokenizer.nextToken();
+			int semi = part.indexOf(';');
+			String name = (semi > -1 ? part.substring(0, semi) : part).trim();
+
+			if(name.equalsIgnoreCase("gzip") || name.equals("*")) {
+				int q = part.indexOf("q=");
+
+				if(q > -1) {
+					try {
+						return Float.parseFloat(part.substring(q + 2).trim()) > 0;
+					}
+					catch(NumberFormatException e) {
+						return false;
+					}
+				}
+
+				return true;
+			}
+		}
+
+		return false;
 	}
 
 	protected static String cookie(String cookie, String key) {
@@ -611,14 +1326,38 @@ public class Event extends Throwable implements Chain.Link {
 		return value;
 	}
 
+	/*
+	 * Random bytes are drawn in bulk and used up by random(int).
+	 */
+	private static byte[] pool = new byte[1024];
+	private static int next = pool.length;
+
+	/**
+	 * @param length
+	 * @return random base58 characters, bytes that would bias the 
+	 * alphabet are skipped.
+	 */
 	public static String random(int length) {
-		StringBuilder builder = new StringBuilder();
+		int limit = BASE_58.length * (256 / BASE_58.length);
+		char[] key = new char[length];
+		int i = 0;
+
+		synchronized (pool) {
+			while (i < length) {
+				if(next == pool.length) {
+					random.nextBytes(pool);
+					next = 0;
+				}
+
+				int b = pool[next++] & 0xff;
 
-		while (builder.length() < length) {
-			builder.append(BASE_58[Math.abs(random.nextInt() % BASE_58.length)]);
+				if(b < limit) {
+					key[i++] = BASE_58[b % BASE_58.length];
+				}
+			}
 		}
 
-		return builder.toString();
+		return new String(key);
 	}
 
 	/**
@@ -0,0 +1,322 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Proxies connections to the least loaded {@link Cluster.Member} when the
+ * events of this node have waited longer than <b>overflow</b> milliseconds
+ * for a worker.<br>
+ * <br>
+ * The bytes are streamed both ways through one buffer per direction on a
+ * selector of its own; only the headers of the first request are read, to
+ * add the {@link #HEADER} with the name of this node, the client address
+ * and <code>Connection: close</code> last, so the member answers that one
+ * request and the client comes back to this node for the next. A node
+ * never forwards a connection that came with that header or from another
+ * member, so requests don't bounce. If the member can't be reached or the
+ * headers don't fit the buffer the client gets a 503, and so does a client
+ * that comes when {@link #OPEN} connections are forwarded already. Pipes
+ * with no bytes either way for {@link #IDLE} milliseconds are closed.
+ *
+ * @author marc
+ */
+public class Forward implements Runnable {
+	static int SIZE = 8192;
+	static String HEADER = "Forwarded-By";
+	static int IDLE = 30000, OPEN = 1024;
+
+	private static byte[] UNAVAILABLE =
+		"HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+
+	private Daemon daemon;
+	private Selector selector;
+	private LinkedList pending;
+	private long forwarded, failed, rejected, idle, swept;
+	private int open;
+
+	protected Forward(Daemon daemon) throws IOException {
+		this.daemon = daemon;
+
+		selector = Selector.open();
+		pending = new LinkedList();
+
+		Thread thread = new Thread(this, "forward");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connects to the member and starts to stream.
+	 * @param client detached from the daemon.
+	 * @param member
+	 * @throws IOException
+	 */
+	protected void add(SocketChannel client, Cluster.Member member) throws IOException {
+		synchronized (pending) {
+			if(open + pending.size() >= OPEN) {
+				rejected++;
+
+				try {
+					client.write(ByteBuffer.wrap(UNAVAILABLE));
+				}
+				finally {
+					client.close();
+				}
+
+				return;
+			}
+		}
+
+		SocketChannel server = SocketChannel.open();
+		server.configureBlocking(false);
+		server.connect(new InetSocketAddress(member.address(), member.port()));
+
+		String remote = client.socket().getInetAddress().getHostAddress();
+		byte[] head = (HEADER + ": " + daemon.name() + "\r\nX-Forwarded-For: " + remote + "\r\nConnection: close\r\n").getBytes();
+
+		synchronized (pending) {
+			pending.add(new Pipe(client, server, head));
+		}
+
+		selector.wakeup();
+		forwarded++;
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				selector.select(IDLE / 2);
+
+				synchronized (pending) {
+					Iterator it = pending.iterator();
+
+					while(it.hasNext()) {
+						Pipe pipe = (Pipe) it.next();
+						open++;
+
+						try {
+							pipe.register();
+						}
+						catch(IOException e) {
+							pipe.fail();
+						}
+					}
+
+					pending.clear();
+				}
+
+				Iterator it = selector.selectedKeys().iterator();
+
+				while(it.hasNext()) {
+					SelectionKey key = (SelectionKey) it.next();
+					it.remove();
+
+					Pipe pipe = (Pipe) key.attachment();
+
+					try {
+						if(key.isValid()) {
+							pipe.ready(key);
+						}
+					}
+					catch(IOException e) {
+						pipe.fail();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+
+				if(now - swept >= IDLE / 2) {
+					sweep(now);
+					swept = now;
+				}
+			}
+			catch(Exception e) {
+				e.printStackTrace(daemon.out);
+			}
+		}
+	}
+
+	/*
+	 * Closes the pipes that have been quiet too long, like a member that 
+	 * accepted but never answers or a client that stopped reading.
+	 */
+	private void sweep(long now) {
+		Iterator it = selector.keys().iterator();
+
+		while(it.hasNext()) {
+			Pipe pipe = (Pipe) ((SelectionKey) it.next()).attachment();
+
+			if(!pipe.closed && now - pipe.last > IDLE) {
+				idle++;
+				pipe.fail();
+			}
+		}
+	}
+
+	public String toString() {
+		return "open: " + open + ", forwarded: " + forwarded + ", failed: " + failed + ", rejected: " + rejected + ", idle: " + idle;
+	}
+
+	/*
+	 * One forwarded connection; up is from the client and down is from
+	 * the member, both buffers are kept in fill mode.
+	 */
+	class Pipe {
+		SocketChannel client, server;
+		SelectionKey in, out;
+		ByteBuffer up, down;
+		boolean connected, closed, sent, eof, end;
+		byte[] head;
+		long last;
+
+		Pipe(SocketChannel client, SocketChannel server, byte[] head) {
+			this.client = client;
+			this.server = server;
+			this.head = head;
+
+			up = ByteBuffer.allocate(SIZE + head.length);
+			up.limit(SIZE);
+			down = ByteBuffer.allocate(SIZE);
+			last = System.currentTimeMillis();
+		}
+
+		void register() throws IOException {
+			in = client.register(selector, SelectionKey.OP_READ, this);
+			out = server.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+
+		void ready(SelectionKey key) throws IOException {
+			last = System.currentTimeMillis();
+
+			if(key == out && key.isConnectable()) {
+				server.finishConnect();
+				connected = true;
+			}
+			else if(key == in) {
+				if(key.isReadable() && client.read(up) < 0) {
+					eof = true;
+				}
+
+				if(key.isWritable()) {
+					write(client, down);
+				}
+			}
+			else {
+				if(key.isReadable() && server.read(down) < 0) {
+					end = true;
+				}
+
+				if(key.isWritable()) {
+					write(server, up);
+				}
+			}
+
+			if(head != null) {
+				inject();
+			}
+
+			interest();
+		}
+
+		/*
+		 * Puts the header before the empty line that ends the headers,
+		 * after the ones of the client so it overrides their connection.
+		 */
+		void inject() throws IOException {
+			byte[] data = up.array();
+			int length = up.position();
+
+			for(int i = 0; i < length - 1; i++) {
+				if(data[i] == '\n' && (data[i + 1] == '\n' || data[i + 1] == '\r' && i + 2 < length && data[i + 2] == '\n')) {
+					System.arraycopy(data, i + 1, data, i + 1 + head.length, length - i - 1);
+					System.arraycopy(head, 0, data, i + 1, head.length);
+					up.limit(up.capacity());
+					up.position(length + head.length);
+					head = null;
+					return;
+				}
+			}
+
+			if(length == up.limit()) {
+				throw new IOException("Headers too large.");
+			}
+
+			if(eof) {
+				head = null;
+				up.limit(up.capacity());
+			}
+		}
+
+		void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			channel.write(buffer);
+			buffer.compact();
+		}
+
+		void interest() throws IOException {
+			if(eof && up.position() == 0 && connected && !sent) {
+				server.socket().shutdownOutput();
+				sent = true;
+			}
+
+			if(end && down.position() == 0 || eof && sent && end) {
+				close();
+				return;
+			}
+
+			int interest = 0;
+
+			if(!eof && up.hasRemaining()) interest |= SelectionKey.OP_READ;
+			if(down.position() > 0) interest |= SelectionKey.OP_WRITE;
+
+			in.interestOps(interest);
+
+			if(connected) {
+				interest = 0;
+
+				if(!end && down.hasRemaining()) interest |= SelectionKey.OP_READ;
+				if(up.position() > 0 && head == null) interest |= SelectionKey.OP_WRITE;
+
+				out.interestOps(interest);
+			}
+		}
+
+		void fail() {
+			if(!connected || head != null) {
+				try {
+					client.write(ByteBuffer.wrap(UNAVAILABLE));
+				}
+				catch(IOException e) {}
+			}
+
+			failed++;
+			close();
+		}
+
+		void close() {
+			if(closed) {
+				return;
+			}
+
+			closed = true;
+
+			synchronized (pending) {
+				open--;
+			}
+
+			try {
+				client.close();
+			}
+			catch(IOException e) {}
+
+			try {
+				server.close();
+			}
+			catch(IOException e) {}
+		}
+	}
+}
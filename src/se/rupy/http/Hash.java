@@ -1,24 +1,171 @@
 package se.rupy.http;
 
-import java.util.HashMap;
+import java.util.*;
+import java.util.function.*;
 
 /**
- * Convenience class to avoid casting and parsing everywhere.
- * 
+ * Convenience class to avoid casting and parsing everywhere.<br>
+ * <br>
+ * Values put with the primitive put methods are kept unboxed in long
+ * slots of an open addressing table next to the map, so counters don't
+ * allocate. The map methods box them on the way out; every method of
+ * the map goes through both, including the keySet(), values() and
+ * entrySet() views and their iterators.
+ *
  * @author marc
  */
 public class Hash extends HashMap {
 	private boolean secure;
-	
+	private String[] names;
+	private long[] values;
+	private byte[] types;
+	private int count, changes;
+
 	public Hash(boolean secure) {
 		this.secure = secure;
 	}
-	
+
+	/*
+	 * Linear probe for the slot of the key or -1.
+	 */
+	private int slot(Object key) {
+		if(count == 0 || !(key instanceof String)) {
+			return -1;
+		}
+
+		int mask = names.length - 1;
+		int i = index(key.hashCode(), mask);
+
+		while(names[i] != null) {
+			if(names[i].equals(key)) {
+				return i;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	private static int index(int hash, int mask) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private void slot(String key, long value, char type) {
+		changes++;
+
+		if(super.size() > 0) {
+			super.remove(key);
+		}
+
+		if(names == null) {
+			names = new String[8];
+			values = new long[8];
+			types = new byte[8];
+		}
+		else if((count + 1) * 4 > names.length * 3) {
+			grow();
+		}
+
+		int mask = names.length - 1;
+		int i = index(key.hashCode(), mask);
+
+		while(names[i] != null && !names[i].equals(key)) {
+			i = (i + 1) & mask;
+		}
+
+		if(names[i] == null) {
+			names[i] = key;
+			count++;
+		}
+
+		values[i] = value;
+		types[i] = (byte) type;
+	}
+
+	private void grow() {
+		String[] names = this.names;
+		long[] values = this.values;
+		byte[] types = this.types;
+
+		this.names = new String[names.length * 2];
+		this.values = new long[names.length * 2];
+		this.types = new byte[names.length * 2];
+
+		int mask = this.names.length - 1;
+
+		for(int i = 0; i < names.length; i++) {
+			if(names[i] != null) {
+				int j = index(names[i].hashCode(), mask);
+
+				while(this.names[j] != null) {
+					j = (j + 1) & mask;
+				}
+
+				this.names[j] = names[i];
+				this.values[j] = values[i];
+				this.types[j] = types[i];
+			}
+		}
+	}
+
+	/*
+	 * Empties the slot and moves the following keys back so the probe
+	 * doesn't stop early.
+	 */
+	private void unslot(int i) {
+		int mask = names.length - 1;
+		int j = i;
+
+		names[i] = null;
+		count--;
+
+		while(true) {
+			j = (j + 1) & mask;
+
+			if(names[j] == null) {
+				return;
+			}
+
+			int k = index(names[j].hashCode(), mask);
+
+			if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+
+			names[i] = names[j];
+			values[i] = values[j];
+			types[i] = types[j];
+			names[j] = null;
+			i = j;
+		}
+	}
+
+	private Object box(int i) {
+		switch(types[i]) {
+		case 'J': return new Long(values[i]);
+		case 'I': return new Integer((int) values[i]);
+		case 'S': return new Short((short) values[i]);
+		case 'B': return new Byte((byte) values[i]);
+		default: return Boolean.valueOf(values[i] != 0);
+		}
+	}
+
 	public long big(String key) {
 		return big(key, 0);
 	}
-	
+
 	public long big(String key, long fail) {
+		int i = slot(key);
+
+		if(i > -1) {
+			if(types[i] == 'Z') {
+				throw new ClassCastException();
+			}
+
+			return values[i];
+		}
+
 		Object value = super.get(key);
 
 		if (value == null) {
@@ -41,12 +188,22 @@ public class Hash extends HashMap {
 
 		throw new ClassCastException();
 	}
-	
+
 	public int medium(String key) {
 		return medium(key, 0);
 	}
-	
+
 	public int medium(String key, int fail) {
+		int i = slot(key);
+
+		if(i > -1) {
+			if(types[i] == 'J' || types[i] == 'Z') {
+				throw new ClassCastException();
+			}
+
+			return (int) values[i];
+		}
+
 		Object value = super.get(key);
 
 		if (value == null) {
@@ -67,12 +224,22 @@ public class Hash extends HashMap {
 
 		throw new ClassCastException();
 	}
-	
+
 	public short small(String key) {
 		return small(key, (short) 0);
 	}
-	
+
 	public short small(String key, short fail) {
+		int i = slot(key);
+
+		if(i > -1) {
+			if(types[i] != 'S' && types[i] != 'B') {
+				throw new ClassCastException();
+			}
+
+			return (short) values[i];
+		}
+
 		Object value = super.get(key);
 
 		if (value == null) {
@@ -95,8 +262,18 @@ public class Hash extends HashMap {
 	public byte tiny(String key) {
 		return tiny(key, (byte) 0);
 	}
-	
+
 	public byte tiny(String key, byte fail) {
+		int i = slot(key);
+
+		if(i > -1) {
+			if(types[i] != 'B') {
+				throw new ClassCastException();
+			}
+
+			return (byte) values[i];
+		}
+
 		Object value = super.get(key);
 
 		if (value == null) {
@@ -113,15 +290,25 @@ public class Hash extends HashMap {
 
 		throw new ClassCastException();
 	}
-	
+
 	/**
-	 * Returns the boolean value, with a twist though 
+	 * Returns the boolean value, with a twist though
 	 * since a parameter is true if it's key is present.
 	 * @param key
 	 * @param exist return true if parameter exists?
 	 * @return if the parameter is true or exists.
 	 */
 	public boolean bit(String key, boolean exist) {
+		int i = slot(key);
+
+		if(i > -1) {
+			if(types[i] != 'Z') {
+				throw new ClassCastException();
+			}
+
+			return values[i] != 0;
+		}
+
 		Object value = super.get(key);
 
 		if (value == null) {
@@ -139,16 +326,14 @@ public class Hash extends HashMap {
 	}
 
 	public String string(String key) {
-		String value = (String) super.get(key);
+		return string(key, "");
+	}
 
-		if (value == null) {
-			return "";
+	public String string(String key, String fail) {
+		if(slot(key) > -1) {
+			throw new ClassCastException();
 		}
 
-		return value;
-	}
-	
-	public String string(String key, String fail) {
 		String value = (String) super.get(key);
 
 		if (value == null) {
@@ -157,38 +342,425 @@ public class Hash extends HashMap {
 
 		return value;
 	}
-	
+
 	public void put(String key, long value) {
-		super.put(key, new Long(value));
+		slot(key, value, 'J');
 	}
-	
+
 	public void put(String key, int value) {
-		super.put(key, new Integer(value));
+		slot(key, value, 'I');
 	}
-	
+
 	public void put(String key, short value) {
-		super.put(key, new Short(value));
+		slot(key, value, 'S');
 	}
-	
+
 	public void put(String key, byte value) {
-		super.put(key, new Byte(value));
+		slot(key, value, 'B');
 	}
-	
+
 	public void put(String key, boolean value) {
-		super.put(key, new Boolean(value));
+		slot(key, value ? 1 : 0, 'Z');
 	}
-	
+
 	protected Object secure(Object key, Object value) {
-		return super.put(key, value);
+		return object(key, value);
 	}
-	
+
 	public Object put(Object key, Object value) {
 		if(secure && key instanceof String && ((String) key).equals("host"))
 			return null;
-		
+
+		return object(key, value);
+	}
+
+	private Object object(Object key, Object value) {
+		int i = slot(key);
+		changes++;
+
+		if(i > -1) {
+			Object old = box(i);
+			unslot(i);
+			super.put(key, value);
+			return old;
+		}
+
 		return super.put(key, value);
 	}
-	
+
+	public Object get(Object key) {
+		int i = slot(key);
+
+		if(i > -1) {
+			return box(i);
+		}
+
+		return super.get(key);
+	}
+
+	public boolean containsKey(Object key) {
+		return slot(key) > -1 || super.containsKey(key);
+	}
+
+	public boolean containsValue(Object value) {
+		for(int i = 0; count > 0 && i < names.length; i++) {
+			if(names[i] != null && box(i).equals(value)) {
+				return true;
+			}
+		}
+
+		return super.containsValue(value);
+	}
+
+	public Object remove(Object key) {
+		int i = slot(key);
+		changes++;
+
+		if(i > -1) {
+			Object old = box(i);
+			unslot(i);
+			return old;
+		}
+
+		return super.remove(key);
+	}
+
+	public void putAll(Map map) {
+		Iterator it = map.entrySet().iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public int size() {
+		return super.size() + count;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void clear() {
+		changes++;
+		super.clear();
+
+		names = null;
+		values = null;
+		types = null;
+		count = 0;
+	}
+
+	public Object getOrDefault(Object key, Object fail) {
+		Object value = get(key);
+		return value != null || containsKey(key) ? value : fail;
+	}
+
+	public Object putIfAbsent(Object key, Object value) {
+		Object old = get(key);
+		return old == null ? put(key, value) : old;
+	}
+
+	public boolean remove(Object key, Object value) {
+		if(!containsKey(key) || !Objects.equals(get(key), value)) {
+			return false;
+		}
+
+		remove(key);
+		return true;
+	}
+
+	public boolean replace(Object key, Object old, Object value) {
+		if(!containsKey(key) || !Objects.equals(get(key), old)) {
+			return false;
+		}
+
+		put(key, value);
+		return true;
+	}
+
+	public Object replace(Object key, Object value) {
+		return containsKey(key) ? put(key, value) : null;
+	}
+
+	public Object computeIfAbsent(Object key, Function function) {
+		Object value = get(key);
+
+		if(value == null) {
+			value = function.apply(key);
+
+			if(value != null) {
+				put(key, value);
+			}
+		}
+
+		return value;
+	}
+
+	public Object computeIfPresent(Object key, BiFunction function) {
+		Object old = get(key);
+
+		if(old == null) {
+			return null;
+		}
+
+		return change(key, function.apply(key, old));
+	}
+
+	public Object compute(Object key, BiFunction function) {
+		return change(key, function.apply(key, get(key)));
+	}
+
+	public Object merge(Object key, Object value, BiFunction function) {
+		Object old = get(key);
+		return change(key, old == null ? value : function.apply(old, value));
+	}
+
+	private Object change(Object key, Object value) {
+		if(value == null) {
+			remove(key);
+		}
+		else {
+			put(key, value);
+		}
+
+		return value;
+	}
+
+	public void forEach(BiConsumer action) {
+		Iterator it = new Walk(2);
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			action.accept(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public void replaceAll(BiFunction function) {
+		LinkedList keys = new LinkedList(keySet());
+		Iterator it = keys.iterator();
+
+		while(it.hasNext()) {
+			Object key = it.next();
+			put(key, function.apply(key, get(key)));
+		}
+	}
+
+	public Set keySet() {
+		return new AbstractSet() {
+			public Iterator iterator() {
+				return new Walk(0);
+			}
+
+			public int size() {
+				return Hash.this.size();
+			}
+
+			public boolean contains(Object key) {
+				return containsKey(key);
+			}
+		};
+	}
+
+	public Collection values() {
+		return new AbstractCollection() {
+			public Iterator iterator() {
+				return new Walk(1);
+			}
+
+			public int size() {
+				return Hash.this.size();
+			}
+
+			public boolean contains(Object value) {
+				return containsValue(value);
+			}
+		};
+	}
+
+	public Set entrySet() {
+		return new AbstractSet() {
+			public Iterator iterator() {
+				return new Walk(2);
+			}
+
+			public int size() {
+				return Hash.this.size();
+			}
+
+			public boolean contains(Object object) {
+				if(!(object instanceof Map.Entry)) {
+					return false;
+				}
+
+				Map.Entry entry = (Map.Entry) object;
+				return containsKey(entry.getKey()) && Objects.equals(get(entry.getKey()), entry.getValue());
+			}
+		};
+	}
+
+	/*
+	 * Walks the map and then the slots, from a copy of their names since 
+	 * removing one moves the others; keys, values or entries by kind. A 
+	 * slot set to an object moves to the map, which is walked by then.
+	 */
+	class Walk implements Iterator {
+		private Iterator map = Hash.super.entrySet().iterator();
+		private String[] names;
+		private String name;
+		private int kind, slot, last, changes = Hash.this.changes;
+
+		Walk(int kind) {
+			this.kind = kind;
+
+			if(count > 0) {
+				names = new String[count];
+
+				for(int i = 0, j = 0; i < Hash.this.names.length; i++) {
+					if(Hash.this.names[i] != null) {
+						names[j++] = Hash.this.names[i];
+					}
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return map.hasNext() || names != null && slot < names.length;
+		}
+
+		public Object next() {
+			if(changes != Hash.this.changes) {
+				throw new ConcurrentModificationException();
+			}
+
+			Map.Entry entry = null;
+			Object key = null, value = null;
+
+			if(map.hasNext()) {
+				entry = (Map.Entry) map.next();
+				key = entry.getKey();
+				value = entry.getValue();
+				last = 1;
+			}
+			else if(names != null && slot < names.length) {
+				name = names[slot++];
+				key = name;
+				value = kind == 0 ? null : box(Hash.this.slot(name));
+				last = 2;
+			}
+			else {
+				throw new NoSuchElementException();
+			}
+
+			switch(kind) {
+			case 0: return key;
+			case 1: return value;
+			default: return new Pair(key, value, entry);
+			}
+		}
+
+		public void remove() {
+			if(changes != Hash.this.changes) {
+				throw new ConcurrentModificationException();
+			}
+
+			switch(last) {
+			case 1: map.remove(); Hash.this.changes++; break;
+			case 2: Hash.this.remove(name); break;
+			default: throw new IllegalStateException();
+			}
+
+			changes = Hash.this.changes;
+			last = 0;
+		}
+
+		/*
+		 * An entry that writes through to the hash.
+		 */
+		class Pair extends AbstractMap.SimpleEntry {
+			private Map.Entry entry;
+
+			Pair(Object key, Object value, Map.Entry entry) {
+				super(key, value);
+				this.entry = entry;
+			}
+
+			public Object setValue(Object value) {
+				Object key = getKey();
+
+				if(secure && key instanceof String && ((String) key).equals("host"))
+					return getValue();
+
+				if(entry == null) {
+					Hash.this.put(key, value);
+				}
+				else {
+					entry.setValue(value);
+					Hash.this.changes++;
+				}
+
+				changes = Hash.this.changes;
+				return super.setValue(value);
+			}
+		}
+	}
+
+	/*
+	 * HashMap.clone() copies the slots into the map through the views.
+	 */
+	public Object clone() {
+		Hash hash = (Hash) super.clone();
+
+		if(names != null) {
+			hash.names = names.clone();
+			hash.values = values.clone();
+			hash.types = types.clone();
+			hash.unbox();
+		}
+
+		return hash;
+	}
+
+	private void unbox() {
+		for(int i = 0; i < names.length; i++) {
+			if(names[i] != null) {
+				super.remove(names[i]);
+			}
+		}
+	}
+
+	/*
+	 * The slots and the map without boxing, for the vault.
+	 */
+	int slots() {
+		return count == 0 ? 0 : names.length;
+	}
+
+	String name(int i) {
+		return names[i];
+	}
+
+	char type(int i) {
+		return (char) types[i];
+	}
+
+	long value(int i) {
+		return values[i];
+	}
+
+	Set objects() {
+		return super.entrySet();
+	}
+
+	/*
+	 * Counts the puts and removes, so the vault can skip sessions 
+	 * that didn't change.
+	 */
+	int changes() {
+		return changes;
+	}
+
 	/**
 	 * @return HashMap.toString()
 	 */
@@ -87,6 +87,97 @@ public abstract class Input extends InputStream implements Event.Block {
 		return 0; // will never happen, you silly compiler ...
 	}
 
+	/**
+	 * Reads into the buffer, if nothing is pending in the worker buffer 
+	 * a direct buffer is filled straight from the socket.
+	 * @param b
+	 * @param len
+	 * @return the amount of bytes read.
+	 * @throws IOException
+	 */
+	protected int real(ByteBuffer b, int len) throws IOException {
+		try {
+			if (available == 0 && init && !chunk) {
+				long left = event.query().length() - length;
+
+				if (left <= 0) {
+					return -1; // fixed length EOF
+				}
+
+				if (left < len) {
+					len = (int) left;
+				}
+			}
+
+			if (available == 0 && b.isDirect()) {
+				int limit = b.limit();
+				int read = 0;
+
+				b.limit(b.position() + len);
+
+				try {
+					read = event.channel().read(b);
+				}
+				catch(IOException e) {
+					throw (Failure.Close) new Failure.Close().initCause(e); // Connection reset by peer
+				}
+				finally {
+					b.limit(limit);
+				}
+
+				if (read < 0) {
+					throw new Failure.Close("Available: " + read); // Connection dropped by peer
+				}
+
+				if (read > 0) {
+					event.worker().touch();
+					length += read;
+					return read;
+				}
+			}
+
+			available = fill();
+
+			if (available == 0) {
+				if (init && !chunk && length >= event.query().length()) {
+					return -1; // fixed length EOF
+				}
+
+				available = event.block(this);
+			}
+
+			ByteBuffer in = event.worker().in();
+			int read = available > len ? len : available;
+			int limit = in.limit();
+
+			in.limit(in.position() + read);
+			b.put(in);
+			in.limit(limit);
+
+			available -= read;
+			length += read;
+			return read;
+		} catch (Failure.Close c) {
+			throw c;
+		} catch (IOException e) {
+			Failure.chain(e);
+		} catch (Exception e) {
+			throw (IOException) new IOException().initCause(e);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Reads the request body into a {@link ByteBuffer}, heap, direct and 
+	 * sliced buffers are all accepted. Use a direct buffer to avoid the 
+	 * copy through the worker buffer.
+	 * @param b
+	 * @return the amount of bytes read or -1 when the body is consumed.
+	 * @throws IOException
+	 */
+	public abstract int read(ByteBuffer b) throws IOException;
+
 	public int available() {
 		return available;
 	}
@@ -177,42 +268,43 @@ public abstract class Input extends InputStream implements Event.Block {
 				return real(b, off, len);
 			}
 
-			if (count == 0) {
-				boolean done = false;
-				int c = real();
+			if (count == 0 && !head()) {
+				return -1; // chunked EOF
+			}
 
-				while (c != '\n') {
-					int val = 0;
+			if (len > count) {
+				len = count;
+			}
 
-					if (c == ';' || c == '\r') {
-						done = true;
-					} else if (!done) {
-						if (c >= '0' && c <= '9') {
-							val = c - '0';
-						} else if (c >= 'a' && c <= 'f') {
-							val = c - 'a' + 10;
-						} else if (c >= 'A' && c <= 'F') {
-							val = c - 'A' + 10;
-						} else {
-							throw new IOException("Chunked input.");
-						}
+			int read = real(b, off, len);
 
-						count = count * 16 + val;
-					}
+			if (read == count) {
+				real();
+				real();
+			}
 
-					c = real();
-				}
+			if (read > 0) {
+				count -= read;
+			}
 
-				if (count == 0) {
-					return -1; // chunked EOF
-				}
+			return read;
+		}
+
+		public int read(ByteBuffer b) throws IOException {
+			if (b.remaining() == 0) {
+				return 0;
 			}
 
-			if (len > count) {
-				len = count;
+			if (!chunk()) {
+				return real(b, b.remaining());
 			}
 
-			int read = real(b, off, len);
+			if (count == 0 && !head()) {
+				return -1; // chunked EOF
+			}
+
+			int len = b.remaining() > count ? count : b.remaining();
+			int read = real(b, len);
 
 			if (read == count) {
 				real();
@@ -225,6 +317,38 @@ public abstract class Input extends InputStream implements Event.Block {
 
 			return read;
 		}
+
+		/*
+		 * Parses the next chunk length, false on the zero length chunk.
+		 */
+		private boolean head() throws IOException {
+			boolean done = false;
+			int c = real();
+
+			while (c != '\n') {
+				int val = 0;
+
+				if (c == ';' || c == '\r') {
+					done = true;
+				} else if (!done) {
+					if (c >= '0' && c <= '9') {
+						val = c - '0';
+					} else if (c >= 'a' && c <= 'f') {
+						val = c - 'a' + 10;
+					} else if (c >= 'A' && c <= 'F') {
+						val = c - 'A' + 10;
+					} else {
+						throw new IOException("Chunked input.");
+					}
+
+					count = count * 16 + val;
+				}
+
+				c = real();
+			}
+
+			return count > 0;
+		}
 		
 		public String toString() {
 			return "    chunk: " + chunk + Output.EOL + 
@@ -0,0 +1,368 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Micro-cache for dynamic replies that are the same for every caller for a
+ * short while. A {@link Service} opts in with {@link Service#cache()} or the
+ * <b>micro</b> file lists paths, one per line:
+ * <pre>
+ * # path   rule
+ * /feed    ttl=2000 stale=30000 param=page,sort header=accept-language
+ * </pre>
+ * ttl and stale are in milliseconds. The key is the host, path and the
+ * listed parameters and headers. Only GET replies with 200 OK, a body and
+ * no Set-Cookie header of their own are stored, and hits are sent without
+ * running the chain or touching the session. Within stale after ttl the first request refreshes
+ * the entry while the others get the old copy. The least recently used
+ * entries are evicted beyond <b>micro_size</b> bytes.<br>
+ * <br>
+ * Identical requests that arrive while the reply is computed are held 
+ * without a worker and get the same reply when it's done, so a popular 
+ * key runs the chain once. A rule with ttl=0 only does this.
+ *
+ * @author marc
+ */
+public class Micro {
+	/**
+	 * Returned by {@link #get(String, Event)} when the event was held.
+	 */
+	static Entry WAIT = new Entry(null, new byte[0], new byte[0], null);
+
+	private LinkedHashMap entries;
+	private HashMap paths, flights;
+	private long limit, bytes, hit, miss, stale, wait;
+
+	protected Micro(long limit) {
+		this.limit = limit;
+
+		entries = new LinkedHashMap(16, 0.75f, true);
+		paths = new HashMap();
+		flights = new HashMap();
+	}
+
+	/**
+	 * @param in closed when read.
+	 * @throws IOException
+	 */
+	protected void load(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+		try {
+			String line = null;
+
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				int space = line.indexOf(' ');
+
+				if(space < 0) {
+					throw new IOException("Micro rule needs path and rule (" + line + ").");
+				}
+
+				paths.put(line.substring(0, space), new Rule(line.substring(space + 1)));
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param chain
+	 * @param path
+	 * @return the rule of the service or the file, or null.
+	 */
+	protected Rule rule(Chain chain, String path) {
+		if(limit == 0) {
+			return null;
+		}
+
+		Rule rule = chain.micro();
+
+		if(rule == null && !paths.isEmpty()) {
+			rule = (Rule) paths.get(path);
+		}
+
+		return rule;
+	}
+
+	/**
+	 * @param key
+	 * @param event held if the key is being computed.
+	 * @return a fresh or stale entry to send, {@link #WAIT} if the event 
+	 * was held or null if the caller should run the chain and then 
+	 * {@link #land(String, Entry)}.
+	 */
+	protected synchronized Entry get(String key, Event event) {
+		Entry entry = (Entry) entries.get(key);
+
+		if(entry != null) {
+			long age = System.currentTimeMillis() - entry.date;
+
+			if(age < entry.rule.ttl) {
+				hit++;
+				return entry;
+			}
+
+			if(age < entry.rule.ttl + entry.rule.stale) {
+				if(entry.refresh) {
+					stale++;
+					return entry;
+				}
+
+				entry.refresh = true;
+			}
+		}
+
+		Flight flight = (Flight) flights.get(key);
+
+		if(flight != null) {
+			flight.events.add(event);
+			event.flight(flight);
+			wait++;
+			return WAIT;
+		}
+
+		flights.put(key, new Flight());
+		miss++;
+		return null;
+	}
+
+	/**
+	 * Stores the reply and hands it to the held events.
+	 * @param key
+	 * @param entry null if the reply could not be shared.
+	 * @return the held events to wake up.
+	 */
+	protected synchronized List land(String key, Entry entry) {
+		if(entry != null && entry.rule.ttl > 0) {
+			put(key, entry);
+		}
+		else {
+			done(key);
+		}
+
+		Flight flight = (Flight) flights.remove(key);
+
+		if(flight == null) {
+			return Collections.EMPTY_LIST;
+		}
+
+		flight.entry = entry;
+		flight.landed = true;
+
+		return flight.events;
+	}
+
+	private void put(String key, Entry entry) {
+		if(entry.size() > limit / 4) {
+			done(key);
+			return;
+		}
+
+		Entry old = (Entry) entries.put(key, entry);
+
+		if(old != null) {
+			bytes -= old.size();
+		}
+
+		bytes += entry.size();
+
+		Iterator it = entries.values().iterator();
+
+		while(bytes > limit && it.hasNext()) {
+			bytes -= ((Entry) it.next()).size();
+			it.remove();
+		}
+	}
+
+	/*
+	 * Lets another request refresh, when this one could not be stored.
+	 */
+	private void done(String key) {
+		Entry entry = (Entry) entries.get(key);
+
+		if(entry != null) {
+			entry.refresh = false;
+		}
+	}
+
+	/**
+	 * Forgets all replies, on deploy.
+	 */
+	protected synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public long limit() {
+		return limit;
+	}
+
+	public String toString() {
+		synchronized (this) {
+			return "hit: " + hit + ", stale: " + stale + ", wait: " + wait + ", miss: " + miss + ", entries: " + entries.size() + ", bytes: " + bytes + "/" + limit;
+		}
+	}
+
+	/**
+	 * How long a reply lives and what makes it unique.
+	 */
+	public static class Rule {
+		private long ttl, stale;
+		private String[] params, headers;
+
+		/**
+		 * @param rule like "ttl=2000 stale=30000 param=page,sort header=accept-language".
+		 */
+		public Rule(String rule) {
+			StringTokenizer tokenizer = new StringTokenizer(rule, " \t");
+
+			params = new String[0];
+			headers = new String[0];
+
+			while(tokenizer.hasMoreTokens()) {
+				String token = tokenizer.nextToken();
+				int equals = token.indexOf('=');
+
+				if(equals < 0) {
+					throw new IllegalArgumentException("Micro rule '" + token + "' has no value.");
+				}
+
+				String name = token.substring(0, equals);
+				String value = token.substring(equals + 1);
+
+				if(name.equals("ttl")) {
+					ttl = Long.parseLong(value);
+				}
+				else if(name.equals("stale")) {
+					stale = Long.parseLong(value);
+				}
+				else if(name.equals("param")) {
+					params = split(value);
+				}
+				else if(name.equals("header")) {
+					headers = split(value);
+
+					for(int i = 0; i < headers.length; i++) {
+						headers[i] = headers[i].toLowerCase();
+					}
+				}
+				else {
+					throw new IllegalArgumentException("Micro rule '" + name + "' is unknown.");
+				}
+			}
+		}
+
+		private static String[] split(String value) {
+			StringTokenizer tokenizer = new StringTokenizer(value, ",");
+			String[] split = new String[tokenizer.countTokens()];
+
+			for(int i = 0; i < split.length; i++) {
+				split[i] = tokenizer.nextToken();
+			}
+
+			return split;
+		}
+
+		/**
+		 * @param host
+		 * @param query parsed.
+		 * @return the cache key.
+		 */
+		String key(String host, Query query) {
+			StringBuilder key = new StringBuilder(host).append(query.path());
+
+			for(int i = 0; i < params.length; i++) {
+				key.append('\n').append(query.string(params[i]));
+			}
+
+			for(int i = 0; i < headers.length; i++) {
+				key.append('\n').append(query.header(headers[i]));
+			}
+
+			return key.toString();
+		}
+
+		public String toString() {
+			return "ttl=" + ttl + " stale=" + stale + " param=" + Arrays.asList(params) + " header=" + Arrays.asList(headers);
+		}
+	}
+
+	/**
+	 * A reply being computed and the events waiting for it.
+	 */
+	static class Flight {
+		private LinkedList events = new LinkedList();
+		private volatile boolean landed;
+		private Entry entry;
+
+		/**
+		 * @return true when the reply is done.
+		 */
+		boolean landed() {
+			return landed;
+		}
+
+		/**
+		 * @return the reply or null if the waiting events have to run 
+		 * the chain themselves.
+		 */
+		Entry entry() {
+			return entry;
+		}
+	}
+
+	/**
+	 * A reply with prepared headers.
+	 */
+	static class Entry {
+		private Rule rule;
+		private byte[] head;
+		private ByteBuffer body;
+		private String cache;
+		private boolean refresh;
+		private long date;
+
+		/**
+		 * @param cache the {@link Reply#cache(String)} of the reply, empty 
+		 * if the head has its own Cache-Control.
+		 */
+		Entry(Rule rule, byte[] head, byte[] body, String cache) {
+			this.rule = rule;
+			this.head = head;
+			this.cache = cache;
+			this.body = ByteBuffer.allocateDirect(body.length);
+			this.body.put(body);
+			this.body.flip();
+
+			date = System.currentTimeMillis();
+		}
+
+		long size() {
+			return head.length + body.capacity();
+		}
+
+		byte[] head() {
+			return head;
+		}
+
+		String cache() {
+			return cache;
+		}
+
+		/**
+		 * @return a private view of the body.
+		 */
+		ByteBuffer body() {
+			return body.duplicate();
+		}
+	}
+}
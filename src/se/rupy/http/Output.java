@@ -2,6 +2,7 @@ package se.rupy.http;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -18,6 +19,8 @@ public abstract class Output extends OutputStream implements Event.Block {
 	private final static byte[] stream = ("Content-Type: text/event-stream" + EOL).getBytes(); 
 
 	private byte[] one = new byte[1];
+	private ByteArrayOutputStream copy;
+	private int limit;
 	protected int length, size;
 	protected Reply reply;
 	protected boolean init, push, fixed, done;
@@ -104,6 +107,53 @@ public abstract class Output extends OutputStream implements Event.Block {
 		}
 	}
 
+	/**
+	 * Keeps a copy of the body for the {@link Micro} cache, a transfer or 
+	 * a body larger than the limit stops the copy.
+	 * @param limit 0 stops the copy.
+	 */
+	protected void capture(int limit) {
+		this.limit = limit;
+		copy = limit > 0 ? new ByteArrayOutputStream() : null;
+	}
+
+	/**
+	 * @return the copied body or null.
+	 */
+	protected byte[] captured() {
+		return copy == null ? null : copy.toByteArray();
+	}
+
+	protected void copy(int b) {
+		if (copy != null) {
+			one[0] = (byte) b;
+			copy(one, 0, 1);
+		}
+	}
+
+	protected void copy(byte[] b, int off, int len) {
+		if (copy == null) {
+			return;
+		}
+
+		if (copy.size() + len > limit) {
+			copy = null;
+			return;
+		}
+
+		copy.write(b, off, len);
+	}
+
+	protected void copy(ByteBuffer b) {
+		if (copy == null) {
+			return;
+		}
+
+		byte[] data = new byte[b.remaining()];
+		b.duplicate().get(data);
+		copy(data, 0, data.length);
+	}
+
 	protected void end() throws IOException {
 		if (Event.LOG) {
 			if(reply.event().daemon().debug) {
@@ -124,6 +174,7 @@ public abstract class Output extends OutputStream implements Event.Block {
 
 		fixed = false;
 		init = false;
+		copy = null;
 		length = 0;
 	}
 
@@ -147,31 +198,52 @@ public abstract class Output extends OutputStream implements Event.Block {
 					.getBytes());
 			wrote(server);
 
-			if(!zero()) {
-				wrote(("Content-Type: " + reply.type() + EOL).getBytes());
-			}
-
-			if (length > -1) {
-				wrote(("Content-Length: " + length + EOL).getBytes());
+			if (reply.head() != null) {
+				wrote(reply.head());
 			} else {
-				wrote(chunked);
-			}
+				if(!zero()) {
+					wrote(("Content-Type: " + reply.type() + EOL).getBytes());
+				}
 
-			if (reply.modified() > 0) {
-				wrote(("Last-Modified: "
-						+ reply.event().worker().date().format(new Date(reply.modified())) + EOL)
-						.getBytes());
+				if (length > -1) {
+					wrote(("Content-Length: " + length + EOL).getBytes());
+				} else {
+					wrote(chunked);
+				}
+
+				if (reply.modified() > 0) {
+					wrote(("Last-Modified: "
+							+ reply.event().worker().date().format(new Date(reply.modified())) + EOL)
+							.getBytes());
+				}
 			}
 
-			if (fixed && reply.event().daemon().properties.getProperty("live") != null) {
-				wrote(("Cache-Control: max-age=" + reply.event().daemon().cache + EOL)
-						.getBytes());
+			control();
+
+			String set = null;
+
+			if (reply.event().session() != null) {
+				Seal seal = reply.event().daemon().seal();
+
+				if (seal != null) {
+					try {
+						set = seal.cookie(reply.event().session());
+
+						if (set != null) {
+							set = Seal.NAME + "=" + set;
+						}
+					} catch (IOException e) {
+						e.printStackTrace(reply.event().daemon().out);
+					}
+				} else if (!reply.event().session().set()) {
+					set = "key=" + reply.event().session().key();
+				}
 			}
 
-			if (reply.event().session() != null && !reply.event().session().set()) {
+			if (set != null) {
 				Session session = reply.event().session();
-				String cookie = "Set-Cookie: key="
-						+ session.key()
+				String cookie = "Set-Cookie: "
+						+ set
 						+ ";"
 						+ (session.expires() > 0 ? " expires="
 								+ reply.event().worker().date().format(new Date(session
@@ -213,6 +285,52 @@ public abstract class Output extends OutputStream implements Event.Block {
 		wrote(EOL.getBytes());
 	}
 
+	/*
+	 * Cache-Control from the reply, the policy rules or the live default 
+	 * unless a service set the header itself.
+	 */
+	private void control() throws IOException {
+		if (reply.headers() != null && reply.headers().containsKey("Cache-Control")) {
+			return;
+		}
+
+		Event event = reply.event();
+		String control = reply.cache();
+		long age = -1;
+
+		if (control == null) {
+			String code = reply.code();
+
+			if (code.startsWith("2") || code.startsWith("304")) {
+				String host = event.daemon().host ? event.query().header("host") : "content";
+				Policy.Rule rule = event.daemon().policy().match(host, event.query().path(), reply.type());
+
+				if (rule != null) {
+					control = rule.control();
+					age = rule.age();
+				}
+			}
+
+			if (control == null && fixed && event.daemon().properties.getProperty("live") != null) {
+				control = "max-age=" + event.daemon().cache;
+			}
+		}
+		else {
+			age = Policy.age(control);
+		}
+
+		if (control == null || control.length() == 0) {
+			return;
+		}
+
+		wrote(("Cache-Control: " + control + EOL).getBytes());
+
+		if (age > -1) {
+			wrote(("Expires: " + event.worker().date().format(new Date(System.currentTimeMillis() + age * 1000)) + EOL)
+					.getBytes());
+		}
+	}
+
 	protected void wrote(int b) throws IOException {
 		one[0] = (byte) b;
 		wrote(one);
@@ -252,6 +370,134 @@ public abstract class Output extends OutputStream implements Event.Block {
 		}
 	}
 
+	/**
+	 * Copies the buffer into the worker buffer, buffers larger than the 
+	 * worker buffer are written straight to the socket instead.
+	 * @param b
+	 * @throws IOException
+	 */
+	protected void wrote(ByteBuffer b) throws IOException {
+		try {
+			ByteBuffer out = reply.event().worker().out();
+
+			if (b.remaining() > out.capacity()) {
+				internal(false);
+				send(b);
+				return;
+			}
+
+			int limit = b.limit();
+
+			while (b.remaining() > out.remaining()) {
+				b.limit(b.position() + out.remaining());
+				out.put(b);
+				b.limit(limit);
+
+				internal(false);
+			}
+
+			out.put(b);
+		} catch (Failure.Close c) {
+			throw c;
+		} catch (IOException e) {
+			Failure.chain(e);
+		} catch (Exception e) {
+			throw (IOException) new IOException("You need to increase your socket write buffer!").initCause(e);
+		}
+	}
+
+	/**
+	 * Writes the buffer to the socket without passing the worker buffer, 
+	 * which has to be empty.
+	 * @param b
+	 * @throws Exception
+	 */
+	protected void send(final ByteBuffer b) throws Exception {
+		Event.Block block = new Event.Block() {
+			public int fill() throws IOException {
+				try {
+					return reply.event().channel().write(b);
+				}
+				catch(IOException e) {
+					throw (Failure.Close) new Failure.Close().initCause(e); // Connection reset by peer
+				}
+			}
+		};
+
+		while (b.remaining() > 0) {
+			int sent = block.fill();
+
+			if (sent == 0) {
+				reply.event().block(block);
+			}
+			else {
+				reply.event().worker().touch();
+			}
+		}
+	}
+
+	/**
+	 * Sends a file region with {@link FileChannel#transferTo(long, long, WritableByteChannel)} 
+	 * after flushing the headers. If the socket buffer fills up the rest is sent by the 
+	 * selector thread so the worker can be released.
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	protected void transfer(FileChannel file, long position, long count) throws IOException {
+		transfer(new Transfer(file, position, count));
+	}
+
+	/**
+	 * Sends a cached body, small bodies are copied behind the headers and 
+	 * larger ones are sent like {@link #transfer(FileChannel, long, long)}.
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void transfer(ByteBuffer body) throws IOException {
+		copy = null;
+
+		if (body.remaining() <= reply.event().worker().out().remaining()) {
+			length += body.remaining();
+			wrote(body);
+			return;
+		}
+
+		transfer(new Transfer(body));
+	}
+
+	/**
+	 * Sends a chain of file regions and buffers in order.
+	 * @param transfer
+	 * @throws IOException
+	 */
+	protected void transfer(Transfer transfer) throws IOException {
+		length += transfer.length();
+		copy = null;
+
+		try {
+			flush();
+
+			if (transfer.send(reply.event().channel())) {
+				transfer.close();
+			}
+			else {
+				if (Event.LOG) {
+					if (reply.event().daemon().debug) {
+						reply.event().log("transfer pending " + transfer, Event.DEBUG);
+					}
+				}
+
+				reply.event().transfer(transfer);
+			}
+		}
+		catch(IOException e) {
+			transfer.close();
+			throw (Failure.Close) new Failure.Close().initCause(e); // Connection reset by peer
+		}
+	}
+
 	protected void internal(boolean debug) throws Exception {
 		ByteBuffer out = reply.event().worker().out();
 
@@ -337,14 +583,115 @@ public abstract class Output extends OutputStream implements Event.Block {
 	 */
 	public abstract void finish() throws IOException;
 
+	/**
+	 * Writes the remaining bytes of the buffer, heap buffers are written 
+	 * like arrays and direct or read-only buffers are copied once or sent 
+	 * straight to the socket if they are larger than the IO buffer.
+	 * 
+	 * @param b
+	 * @throws IOException
+	 */
+	public abstract void write(ByteBuffer b) throws IOException;
+
 	protected boolean zero() {
 		return reply.code().startsWith("302")
 				|| reply.code().startsWith("304")
 				|| reply.code().startsWith("505");
 	}
 
+	/**
+	 * Zero-copy file region, continued by the selector thread when the 
+	 * socket buffer is full. Regions can be chained with {@link #then(Transfer)}.
+	 */
+	static class Transfer {
+		private FileChannel file;
+		private ByteBuffer buffer;
+		private long position, count;
+		private Transfer next;
+
+		Transfer(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+		}
+
+		Transfer(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Appends a region to the end of the chain.
+		 * @param next
+		 * @return this
+		 */
+		protected Transfer then(Transfer next) {
+			Transfer last = this;
+
+			while (last.next != null) {
+				last = last.next;
+			}
+
+			last.next = next;
+			return this;
+		}
+
+		/**
+		 * @return the bytes left to send in the chain.
+		 */
+		protected long length() {
+			long length = buffer == null ? count : buffer.remaining();
+			return next == null ? length : length + next.length();
+		}
+
+		/**
+		 * @param channel
+		 * @return true if the whole chain was sent.
+		 * @throws IOException
+		 */
+		protected boolean send(SocketChannel channel) throws IOException {
+			if (buffer != null) {
+				while (buffer.remaining() > 0) {
+					if (channel.write(buffer) == 0) {
+						return false;
+					}
+				}
+			}
+			else {
+				while (count > 0) {
+					long sent = file.transferTo(position, count, channel);
+
+					if (sent == 0) {
+						return false;
+					}
+
+					position += sent;
+					count -= sent;
+				}
+			}
+
+			return next == null || next.send(channel);
+		}
+
+		protected void close() {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {}
+			}
+
+			if (next != null) {
+				next.close();
+			}
+		}
+
+		public String toString() {
+			return (buffer == null ? position + "+" + count : "" + buffer) + (next == null ? "" : ", " + next);
+		}
+	}
+
 	static class Chunked extends Output {
 		public static int OFFSET = 6;
+		private final static byte[] crlf = EOL.getBytes();
 		private int cursor = OFFSET, count = 0;
 
 		Chunked(Reply reply) throws IOException {
@@ -352,6 +699,7 @@ public abstract class Output extends OutputStream implements Event.Block {
 		}
 
 		public void write(int b) throws IOException {
+			copy(b);
 			reply.event().worker().chunk()[cursor++] = (byte) b;
 			count++;
 
@@ -366,12 +714,24 @@ public abstract class Output extends OutputStream implements Event.Block {
 
 		public void write(byte[] b, int off, int len) throws IOException {
 			length += len;
+			copy(b, off, len);
 
 			if (fixed) {
 				wrote(b, off, len);
 				return;
 			}
 
+			if (len >= size) { // no need to stage large writes
+				if (count > 0) {
+					write();
+				}
+
+				head(len);
+				wrote(b, off, len);
+				wrote(crlf);
+				return;
+			}
+
 			byte[] chunk = reply.event().worker().chunk();
 			int remain = size - count;
 
@@ -403,6 +763,40 @@ public abstract class Output extends OutputStream implements Event.Block {
 			}
 		}
 
+		public void write(ByteBuffer b) throws IOException {
+			int len = b.remaining();
+
+			if (b.hasArray()) {
+				write(b.array(), b.arrayOffset() + b.position(), len);
+				b.position(b.position() + len);
+				return;
+			}
+
+			length += len;
+			copy(b);
+
+			if (fixed) {
+				wrote(b);
+				return;
+			}
+
+			if (len == 0) { // would end the reply
+				return;
+			}
+
+			if (count > 0) {
+				write();
+			}
+
+			head(len);
+			wrote(b);
+			wrote(crlf);
+		}
+
+		private void head(int length) throws IOException {
+			wrote((Integer.toHexString(length) + EOL).getBytes());
+		}
+
 		protected void write() throws IOException {
 			byte[] chunk = reply.event().worker().chunk();
 			char[] header = Integer.toHexString(count).toCharArray();
@@ -0,0 +1,240 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Cache rules for replies, matched on host, path and content type. One rule
+ * per line and the first match wins, a path or type can have one * wildcard:
+ * <pre>
+ * # path        type         cache-control
+ * /static/*     *            public, max-age=86400, stale-while-revalidate=60
+ * *.html        text/html    no-cache
+ * *             image/*      public, max-age=3600, s-maxage=86400
+ * </pre>
+ * The rules of the <b>policy</b> file apply to all hosts, an archive can
+ * add META-INF/cache.txt for its own host which is matched first. Rules
+ * with max-age also send Expires. A service can override the rules with
+ * {@link Reply#cache(String)}.
+ *
+ * @author marc
+ */
+public class Policy {
+	private static Rule[] NONE = new Rule[0];
+
+	private volatile HashMap hosts;
+	private volatile Rule[] rules;
+
+	protected Policy() {
+		hosts = new HashMap();
+		rules = NONE;
+	}
+
+	/**
+	 * @param in closed when read.
+	 * @return the compiled rules.
+	 * @throws IOException
+	 */
+	protected static Rule[] parse(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		LinkedList list = new LinkedList();
+
+		try {
+			String line = null;
+
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				StringTokenizer tokenizer = new StringTokenizer(line, " \t");
+
+				if(tokenizer.countTokens() < 3) {
+					throw new IOException("Cache rule needs path, type and cache-control (" + line + ").");
+				}
+
+				String path = tokenizer.nextToken();
+				String type = tokenizer.nextToken();
+
+				list.add(new Rule(path, type, tokenizer.nextToken("").trim()));
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return (Rule[]) list.toArray(new Rule[list.size()]);
+	}
+
+	/**
+	 * Sets the rules for all hosts.
+	 * @param rules
+	 */
+	protected void rules(Rule[] rules) {
+		this.rules = rules == null ? NONE : rules;
+	}
+
+	/**
+	 * Sets the rules of one host, on deploy.
+	 * @param host
+	 * @param rules null removes them.
+	 */
+	protected synchronized void rules(String host, Rule[] rules) {
+		HashMap hosts = (HashMap) this.hosts.clone();
+
+		if(rules == null) {
+			hosts.remove(host);
+		}
+		else {
+			hosts.put(host, rules);
+		}
+
+		this.hosts = hosts;
+	}
+
+	/**
+	 * @param host
+	 * @param path
+	 * @param type
+	 * @return the first matching rule or null.
+	 */
+	protected Rule match(String host, String path, String type) {
+		HashMap hosts = this.hosts;
+
+		if(!hosts.isEmpty()) {
+			Rule[] own = (Rule[]) hosts.get(host);
+
+			if(own == null) {
+				own = (Rule[]) hosts.get("www." + host);
+			}
+
+			if(own == null) {
+				own = (Rule[]) hosts.get(host.substring(host.indexOf('.') + 1));
+			}
+
+			Rule rule = match(own, path, type);
+
+			if(rule != null) {
+				return rule;
+			}
+		}
+
+		return match(rules, path, type);
+	}
+
+	private static Rule match(Rule[] rules, String path, String type) {
+		if(rules == null) {
+			return null;
+		}
+
+		for(int i = 0; i < rules.length; i++) {
+			if(rules[i].match(path, type)) {
+				return rules[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param control
+	 * @return the max-age in seconds or -1.
+	 */
+	protected static long age(String control) {
+		int index = control.indexOf("max-age=");
+
+		if(index < 0) {
+			return -1;
+		}
+
+		int end = index + 8;
+
+		while(end < control.length() && Character.isDigit(control.charAt(end))) {
+			end++;
+		}
+
+		try {
+			return Long.parseLong(control.substring(index + 8, end));
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public String toString() {
+		return "rules: " + rules.length + ", hosts: " + hosts.size();
+	}
+
+	/**
+	 * A path and type pattern split around the wildcard.
+	 */
+	static class Rule {
+		private String head, tail, type, control;
+		private boolean any, exact;
+		private long age;
+
+		Rule(String path, String type, String control) {
+			int star = path.indexOf('*');
+
+			if(star < 0) {
+				head = path;
+				exact = true;
+			}
+			else {
+				head = path.substring(0, star);
+				tail = path.substring(star + 1);
+			}
+
+			if(type.equals("*")) {
+				any = true;
+			}
+			else if(type.endsWith("/*")) {
+				this.type = type.substring(0, type.length() - 1);
+			}
+			else {
+				this.type = type;
+			}
+
+			this.control = control;
+			this.age = Policy.age(control);
+		}
+
+		boolean match(String path, String type) {
+			if(exact) {
+				if(!path.equals(head)) {
+					return false;
+				}
+			}
+			else if(path.length() < head.length() + tail.length() || !path.startsWith(head) || !path.endsWith(tail)) {
+				return false;
+			}
+
+			if(any) {
+				return true;
+			}
+
+			if(this.type.endsWith("/")) {
+				return type.startsWith(this.type);
+			}
+
+			return type.startsWith(this.type) && (type.length() == this.type.length() || type.charAt(this.type.length()) == ';');
+		}
+
+		String control() {
+			return control;
+		}
+
+		/**
+		 * @return the max-age in seconds or -1.
+		 */
+		long age() {
+			return age;
+		}
+
+		public String toString() {
+			return (exact ? head : head + "*" + tail) + " " + (any ? "*" : type) + " " + control;
+		}
+	}
+}
@@ -14,7 +14,7 @@ public class Query extends Hash {
 	public final static int GET = 1 << 0, POST = 1 << 1, PUT = 1 << 2, DELETE = 1 << 3, HEAD = 1 << 4;
 	private static URLDecoder decoder = new URLDecoder();
 	private String path, version, parameters;
-	private Hash headers;
+	private Hash headers, paths;
 	private Input input;
 	private int method;
 	private long length, modified;
@@ -23,11 +23,13 @@ public class Query extends Hash {
 	protected Query(Event event) throws IOException {
 		super(false);
 		headers = new Hash(true);
+		paths = new Hash(false);
 		input = new Input.Chunked(event);
 	}
 
 	protected boolean headers() throws IOException {
 		headers.clear();
+		paths.clear();
 
 		String line = input.line();
 
@@ -227,6 +229,19 @@ public class Query extends Hash {
 		return path;
 	}
 
+	/**
+	 * @param name of a :name segment in the path of the service, or "*" 
+	 * for the wildcard, see {@link Router}.
+	 * @return the captured part of the path or "".
+	 */
+	public String path(String name) {
+		return paths.string(name);
+	}
+
+	protected Hash paths() {
+		return paths;
+	}
+
 	public String version() {
 		return version;
 	}
@@ -0,0 +1,485 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Replicates sessions to the other nodes of the <b>multi</b> group, so a
+ * request can land on any node and sessions survive the loss of one.<br>
+ * <br>
+ * At the end of each request the attributes that changed are sent as a
+ * delta with the next version of the session; the first one is sent in
+ * full. The node that changed a session last owns it and is the only one
+ * that tells the others when it times out, the others are backups that
+ * keep a copy. A delta that doesn't follow the version a backup has
+ * drops its copy, and a node that gets a cookie it has no session for
+ * asks the group and waits <b>replicate_wait</b> milliseconds for one.
+ * Keys that don't look like session keys are not asked for, the ones
+ * nobody had are not asked for again for {@link #MISS} milliseconds and
+ * at most half the workers wait at once. Changes are applied to a copy
+ * of the session that then replaces it, so requests never see half of
+ * one.<br>
+ * <br>
+ * Each change is signed and sent on the {@link #TOPIC} of the
+ * {@link Cluster}, which batches, orders and sends them again when lost;
+ * the same attribute types as in the {@link Vault} are kept.
+ *
+ * @author marc
+ */
+public class Replica implements Daemon.ClusterListener {
+	static String TOPIC = "_session";
+	static int TAG = 16, KEY = 64, MISSES = 4096;
+	static long MISS = 10000;
+
+	private Daemon daemon;
+	private Cluster cluster;
+	private Sessions sessions;
+	private SecretKeySpec sign;
+	private Mac mac;
+	private String name;
+	private HashMap waiting;
+	private LinkedHashMap misses;
+	private long wait, timeout;
+	private long sent, received, forged, applied, stale;
+
+	/**
+	 * @param daemon
+	 * @param secret shared by the nodes.
+	 * @param wait milliseconds to wait for a session from the others.
+	 * @param timeout session timeout in milliseconds.
+	 * @throws Exception
+	 */
+	protected Replica(Daemon daemon, String secret, long wait, long timeout) throws Exception {
+		this(daemon, daemon.cluster(), daemon.session(), secret, wait, timeout);
+	}
+
+	/*
+	 * With a cluster that has no threads the harness can run nodes by 
+	 * hand.
+	 */
+	Replica(Daemon daemon, Cluster cluster, Sessions sessions, String secret, long wait, long timeout) throws Exception {
+		this.daemon = daemon;
+		this.cluster = cluster;
+		this.sessions = sessions;
+		this.wait = wait;
+		this.timeout = timeout;
+
+		name = cluster.name();
+		sign = new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(("replicate:" + secret).getBytes("UTF-8")), "HmacSHA256");
+		mac = mac();
+		waiting = new HashMap();
+		misses = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > MISSES;
+			}
+		};
+
+		cluster.add(TOPIC, this);
+	}
+
+	private Mac mac() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(sign);
+		return mac;
+	}
+
+	/**
+	 * Sends what changed in the session, or the date if half the timeout
+	 * has passed, so the backups don't time it out.
+	 * @param session
+	 * @throws IOException
+	 */
+	protected void update(Session session) throws IOException {
+		if(session.key() == null) {
+			return;
+		}
+
+		boolean full = session.version() == 0;
+		HashMap sums = new HashMap();
+		LinkedList puts = new LinkedList();
+		attributes(session, full ? null : session.sums(), sums, puts);
+
+		LinkedList removes = new LinkedList();
+		Iterator it = session.sums().keySet().iterator();
+
+		while(it.hasNext()) {
+			Object attribute = it.next();
+
+			if(!sums.containsKey(attribute)) {
+				removes.add(attribute);
+			}
+		}
+
+		long date = session.date();
+
+		if(!full && puts.isEmpty() && removes.isEmpty() && date - session.replicated() < timeout / 2) {
+			return;
+		}
+
+		session.replicated(name, session.version() + 1, date);
+		session.sums().clear();
+		session.sums().putAll(sums);
+
+		queue('U', op(session, full, puts, removes));
+	}
+
+	/*
+	 * Encodes the attributes that differ from the old checksums, all of
+	 * them if old is null.
+	 */
+	private void attributes(Session session, HashMap old, HashMap sums, List puts) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int slots = session.slots();
+
+		for(int i = 0; i < slots; i++) {
+			if(session.name(i) != null) {
+				bytes.reset();
+				Vault.write(out, session.name(i), session.type(i), session.value(i));
+				change(session.name(i), bytes.toByteArray(), old, sums, puts);
+			}
+		}
+
+		Iterator it = session.objects().iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			bytes.reset();
+
+			if(entry.getKey() instanceof String && Vault.write(out, (String) entry.getKey(), entry.getValue())) {
+				change((String) entry.getKey(), bytes.toByteArray(), old, sums, puts);
+			}
+		}
+	}
+
+	private static void change(String name, byte[] data, HashMap old, HashMap sums, List puts) {
+		Integer sum = new Integer(Vault.sum(data));
+		sums.put(name, sum);
+
+		if(old == null || !sum.equals(old.get(name))) {
+			puts.add(data);
+		}
+	}
+
+	private byte[] op(Session session, boolean full, List puts, List removes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeUTF(session.host());
+		out.writeUTF(session.key());
+		out.writeUTF(session.owner());
+		out.writeLong(session.version());
+		out.writeBoolean(full);
+		out.writeLong(session.date());
+		out.writeUTF(session.domain() == null ? "" : session.domain());
+		out.writeLong(session.expires());
+		out.writeInt(puts.size());
+
+		Iterator it = puts.iterator();
+
+		while(it.hasNext()) {
+			byte[] data = (byte[]) it.next();
+			out.writeInt(data.length);
+			out.write(data);
+		}
+
+		out.writeInt(removes.size());
+		it = removes.iterator();
+
+		while(it.hasNext()) {
+			out.writeUTF((String) it.next());
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Tells the others that a session this node owns is gone.
+	 * @param session
+	 * @throws IOException
+	 */
+	protected void expire(Session session) throws IOException {
+		if(session.key() == null || !name.equals(session.owner())) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(session.host());
+		out.writeUTF(session.key());
+		out.writeLong(session.version());
+		queue('X', bytes.toByteArray());
+	}
+
+	/**
+	 * Asks the others for a session and waits for the answer, unless the
+	 * key is malformed, was missed recently or too many workers wait.
+	 * @param host
+	 * @param key
+	 * @return true if the session arrived.
+	 * @throws IOException
+	 */
+	protected boolean fetch(String host, String key) throws IOException {
+		if(!valid(key)) {
+			return false;
+		}
+
+		String id = host + '\n' + key;
+		long now = System.currentTimeMillis();
+		boolean ask = false;
+		Fetch fetch = null;
+
+		synchronized (misses) {
+			Long miss = (Long) misses.get(id);
+
+			if(miss != null) {
+				if(now - miss.longValue() < MISS) {
+					return false;
+				}
+
+				misses.remove(id);
+			}
+		}
+
+		synchronized (waiting) {
+			fetch = (Fetch) waiting.get(id);
+
+			if(fetch == null) {
+				if(waiting.size() >= Math.max(1, daemon.threads / 2)) {
+					return false;
+				}
+
+				fetch = new Fetch();
+				waiting.put(id, fetch);
+				ask = true;
+			}
+		}
+
+		try {
+			if(ask) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeUTF(host);
+				out.writeUTF(key);
+				queue('F', bytes.toByteArray());
+			}
+
+			synchronized (fetch) {
+				if(!fetch.done) {
+					fetch.wait(wait);
+				}
+			}
+
+			return fetch.done;
+		}
+		catch(InterruptedException e) {
+			return false;
+		}
+		finally {
+			if(ask) {
+				synchronized (waiting) {
+					waiting.remove(id);
+				}
+
+				if(!fetch.done) {
+					synchronized (misses) {
+						misses.put(id, new Long(now));
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Keys made by Event.random() or set by the services; letters, 
+	 * digits, '-' and '_' no shorter than the <b>cookie</b> length.
+	 */
+	private boolean valid(String key) {
+		if(key.length() < daemon.cookie || key.length() > KEY) {
+			return false;
+		}
+
+		for(int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+
+			if(!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void queue(char kind, byte[] op) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(op.length + 1 + TAG);
+		bytes.write(kind);
+		bytes.write(op, 0, op.length);
+
+		try {
+			Mac mac = mac();
+			mac.update(bytes.toByteArray());
+			bytes.write(mac.doFinal(), 0, TAG);
+		}
+		catch(GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+
+		cluster.send(TOPIC, bytes.toByteArray());
+		sent++;
+	}
+
+	/**
+	 * Handles a change from another node, in the order it was sent.
+	 * @param data
+	 */
+	public void receive(byte[] data) {
+		try {
+			int length = data.length - TAG;
+
+			if(length < 1) {
+				return;
+			}
+
+			mac.update(data, 0, length);
+			byte[] tag = new byte[TAG];
+			System.arraycopy(mac.doFinal(), 0, tag, 0, TAG);
+			byte[] got = new byte[TAG];
+			System.arraycopy(data, length, got, 0, TAG);
+
+			if(!MessageDigest.isEqual(tag, got)) {
+				forged++;
+				return;
+			}
+
+			received++;
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, length - 1));
+
+			switch((char) data[0]) {
+			case 'U': apply(in); break;
+			case 'X': drop(in); break;
+			case 'F': answer(in); break;
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace(daemon.out);
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		String host = in.readUTF();
+		String key = in.readUTF();
+		String owner = in.readUTF();
+		long version = in.readLong();
+		boolean full = in.readBoolean();
+		long date = in.readLong();
+		String domain = in.readUTF();
+		long expires = in.readLong();
+
+		Session session = sessions.peek(host, key);
+
+		if(full) {
+			if(session != null && session.version() >= version) {
+				done(host, key);
+				return;
+			}
+
+			session = new Session(daemon, host);
+		}
+		else if(session == null) {
+			return;
+		}
+		else if(version != session.version() + 1) {
+			if(version > session.version()) {
+				sessions.drop(host, key);
+				stale++;
+			}
+
+			return;
+		}
+		else {
+			session = session.copy();
+		}
+
+		session.restore(key, domain.length() == 0 ? null : domain, expires, date);
+
+		int puts = in.readInt();
+
+		for(int i = 0; i < puts; i++) {
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			DataInputStream attribute = new DataInputStream(new ByteArrayInputStream(data));
+			String name = attribute.readUTF();
+			attribute.reset();
+			Vault.read(attribute, (Hash) session);
+			session.sums().put(name, new Integer(Vault.sum(data)));
+		}
+
+		int removes = in.readInt();
+
+		for(int i = 0; i < removes; i++) {
+			String name = in.readUTF();
+			session.remove(name);
+			session.sums().remove(name);
+		}
+
+		session.replicated(owner, version, date);
+		sessions.replace(session);
+
+		applied++;
+		done(host, key);
+	}
+
+	private void drop(DataInputStream in) throws IOException {
+		String host = in.readUTF();
+		String key = in.readUTF();
+		long version = in.readLong();
+		Session session = sessions.peek(host, key);
+
+		if(session != null && session.version() <= version) {
+			sessions.drop(host, key);
+		}
+	}
+
+	/*
+	 * Sends the whole session to the node that asked for it.
+	 */
+	private void answer(DataInputStream in) throws IOException {
+		Session session = sessions.peek(in.readUTF(), in.readUTF());
+
+		if(session == null || session.version() == 0) {
+			return;
+		}
+
+		LinkedList puts = new LinkedList();
+		attributes(session, null, new HashMap(), puts);
+		queue('U', op(session, true, puts, Collections.EMPTY_LIST));
+	}
+
+	private void done(String host, String key) {
+		Fetch fetch = null;
+
+		synchronized (waiting) {
+			fetch = (Fetch) waiting.get(host + '\n' + key);
+		}
+
+		if(fetch != null) {
+			synchronized (fetch) {
+				fetch.done = true;
+				fetch.notifyAll();
+			}
+		}
+	}
+
+	public String toString() {
+		return "sent: " + sent + ", received: " + received + ", forged: " + forged + ", applied: " + applied + ", stale: " + stale;
+	}
+
+	static class Fetch {
+		boolean done;
+	}
+}
@@ -44,7 +44,8 @@ public class Reply {
 	private HashMap headers;
 	private Event event;
 	private long modified;
-	private String code;
+	private String code, cache;
+	private byte[] head;
 
 	Output output;
 	
@@ -71,6 +72,8 @@ public class Reply {
 	}
 
 	protected void reset() {
+		head = null;
+		cache = null;
 		modified = 0;
 		type = "text/html; charset=UTF-8";
 		code = "200 OK";
@@ -121,6 +124,14 @@ public class Reply {
 		output.init(0);
 	}
 
+	/**
+	 * Sets the code without flushing, for replies that are written later.
+	 * @param code
+	 */
+	protected void status(String code) {
+		this.code = code;
+	}
+
 	public String type() {
 		return type;
 	}
@@ -146,6 +157,31 @@ public class Reply {
 		headers.put(name, value);
 	}
 
+	/**
+	 * Overrides the cache rules for this reply, see {@link Policy}. This has 
+	 * to be called before {@link #output()} to have effect.
+	 * @param control the Cache-Control value, Expires follows max-age; an 
+	 * empty string sends neither.
+	 */
+	public void cache(String control) {
+		this.cache = control;
+	}
+
+	protected String cache() {
+		return cache;
+	}
+
+	/**
+	 * @return prepared Content-Type, Content-Length and Last-Modified header lines.
+	 */
+	protected byte[] head() {
+		return head;
+	}
+
+	protected void head(byte[] head) {
+		this.head = head;
+	}
+
 	protected long modified() {
 		return modified;
 	}
@@ -0,0 +1,350 @@
+package se.rupy.http;
+
+import java.util.*;
+
+/**
+ * Immutable path to {@link Chain} lookup, built on deploy. Plain paths are
+ * found with one hash lookup, the others are kept in a compressed radix
+ * tree where a segment can be a :name capture and the path can end with a
+ * * wildcard:
+ * <pre>
+ * /user/:id/photos
+ * /static/*
+ * </pre>
+ * Literal characters win over a capture and a capture wins over a wildcard,
+ * the captures are available with {@link Query#path(String)} and the
+ * wildcard is captured as "*".
+ *
+ * @author marc
+ */
+public class Router {
+	static Router NONE = new Router(new HashMap());
+
+	private HashMap exact;
+	private Node root;
+	private int size;
+
+	/**
+	 * @param chains path to chain.
+	 */
+	protected Router(Map chains) {
+		exact = new HashMap();
+		Iterator it = chains.entrySet().iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			String path = (String) entry.getKey();
+
+			if(pattern(path)) {
+				if(root == null) {
+					root = new Node("");
+				}
+
+				root.add(path, 0, (Chain) entry.getValue());
+				size = Math.max(size, Node.names(path).length);
+			}
+			else {
+				exact.put(path, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return true if the path has a capture or a wildcard.
+	 */
+	static boolean pattern(String path) {
+		return path.indexOf("/:") > -1 || path.endsWith("*");
+	}
+
+	/**
+	 * Splits the path of a service on ':', unless it starts a capture.
+	 * @param path like "/login:/user/:id".
+	 * @return the paths.
+	 */
+	static List split(String path) {
+		LinkedList list = new LinkedList();
+		int start = 0;
+
+		for(int i = 0; i < path.length(); i++) {
+			if(path.charAt(i) == ':' && (i == 0 || path.charAt(i - 1) != '/')) {
+				if(i > start) {
+					list.add(path.substring(start, i));
+				}
+
+				start = i + 1;
+			}
+		}
+
+		if(path.length() > start) {
+			list.add(path.substring(start));
+		}
+
+		return list;
+	}
+
+	/**
+	 * @param path
+	 * @param captures cleared and filled with the captures, can be null.
+	 * @return the chain or null.
+	 */
+	protected Chain find(String path, Hash captures) {
+		Chain chain = (Chain) exact.get(path);
+
+		if(chain != null || root == null) {
+			if(chain != null && captures != null) {
+				captures.clear();
+			}
+
+			return chain;
+		}
+
+		String[] values = new String[size];
+		Node node = root.find(path, 0, values, 0);
+
+		if(node == null) {
+			return null;
+		}
+
+		if(captures != null) {
+			captures.clear();
+
+			for(int i = 0; i < node.names.length; i++) {
+				captures.put(node.names[i], values[i]);
+			}
+		}
+
+		return node.chain;
+	}
+
+	public String toString() {
+		return "exact: " + exact.size() + (root == null ? "" : ", tree: " + root);
+	}
+
+	/*
+	 * Literal characters with children on their first character, a
+	 * capture child and the chains that end here.
+	 */
+	static class Node {
+		private String label;
+		private char[] first;
+		private Node[] children;
+		private Node capture, wildcard;
+		private Chain chain;
+		private String[] names;
+
+		Node(String label) {
+			this.label = label;
+			first = new char[0];
+			children = new Node[0];
+		}
+
+		/*
+		 * Adds the rest of the path from index, the label of this node
+		 * is already matched.
+		 */
+		void add(String path, int index, Chain chain) {
+			if(index == path.length()) {
+				end(path, chain);
+				return;
+			}
+
+			char c = path.charAt(index);
+
+			if(c == '*' && index == path.length() - 1) {
+				if(wildcard == null) {
+					wildcard = new Node("*");
+				}
+
+				wildcard.end(path, chain);
+				return;
+			}
+
+			if(c == ':' && index > 0 && path.charAt(index - 1) == '/') {
+				int end = path.indexOf('/', index);
+
+				if(end < 0) {
+					end = path.length();
+				}
+
+				if(end == index + 1) {
+					throw new IllegalArgumentException("Capture without name in '" + path + "'.");
+				}
+
+				if(capture == null) {
+					capture = new Node(":");
+				}
+
+				capture.add(path, end, chain);
+				return;
+			}
+
+			int stop = index;
+
+			while(stop < path.length() && !(stop > 0 && path.charAt(stop) == ':' && path.charAt(stop - 1) == '/') && !(path.charAt(stop) == '*' && stop == path.length() - 1)) {
+				stop++;
+			}
+
+			String literal = path.substring(index, stop);
+
+			for(int i = 0; i < first.length; i++) {
+				if(first[i] == c) {
+					Node child = children[i];
+					int common = common(child.label, literal);
+
+					if(common < child.label.length()) {
+						children[i] = child.split(common);
+						child = children[i];
+					}
+
+					child.add(path, index + common, chain);
+					return;
+				}
+			}
+
+			Node child = new Node(literal);
+			first = grow(first, c);
+			children = grow(children, child);
+			child.add(path, stop, chain);
+		}
+
+		private void end(String path, Chain chain) {
+			if(this.chain != null) {
+				throw new IllegalArgumentException("Route '" + path + "' is ambiguous.");
+			}
+
+			this.chain = chain;
+			this.names = names(path);
+		}
+
+		/*
+		 * Keeps the first characters here and moves the rest to a child.
+		 */
+		private Node split(int at) {
+			Node head = new Node(label.substring(0, at));
+			label = label.substring(at);
+			head.first = new char[] {label.charAt(0)};
+			head.children = new Node[] {this};
+			return head;
+		}
+
+		/*
+		 * The label of this node is matched up to index.
+		 */
+		Node find(String path, int index, String[] values, int count) {
+			if(index == path.length() && chain != null) {
+				return this;
+			}
+
+			if(index < path.length()) {
+				char c = path.charAt(index);
+
+				for(int i = 0; i < first.length; i++) {
+					if(first[i] == c) {
+						Node child = children[i];
+
+						if(path.startsWith(child.label, index)) {
+							Node node = child.find(path, index + child.label.length(), values, count);
+
+							if(node != null) {
+								return node;
+							}
+						}
+
+						break;
+					}
+				}
+
+				if(capture != null && index > 0 && path.charAt(index - 1) == '/') {
+					int end = path.indexOf('/', index);
+
+					if(end < 0) {
+						end = path.length();
+					}
+
+					if(end > index) {
+						values[count] = path.substring(index, end);
+						Node node = capture.find(path, end, values, count + 1);
+
+						if(node != null) {
+							return node;
+						}
+					}
+				}
+			}
+
+			if(wildcard != null) {
+				values[count] = path.substring(index);
+				return wildcard;
+			}
+
+			return null;
+		}
+
+		static String[] names(String path) {
+			LinkedList list = new LinkedList();
+
+			for(int i = 1; i < path.length(); i++) {
+				if(path.charAt(i) == ':' && path.charAt(i - 1) == '/') {
+					int end = path.indexOf('/', i);
+					list.add(path.substring(i + 1, end < 0 ? path.length() : end));
+				}
+			}
+
+			if(path.endsWith("*")) {
+				list.add("*");
+			}
+
+			return (String[]) list.toArray(new String[list.size()]);
+		}
+
+		private static int common(String a, String b) {
+			int i = 0;
+
+			while(i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+				i++;
+			}
+
+			return i;
+		}
+
+		private static char[] grow(char[] array, char c) {
+			char[] grown = new char[array.length + 1];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			grown[array.length] = c;
+			return grown;
+		}
+
+		private static Node[] grow(Node[] array, Node node) {
+			Node[] grown = new Node[array.length + 1];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			grown[array.length] = node;
+			return grown;
+		}
+
+		public String toString() {
+			StringBuilder builder = new StringBuilder(label);
+
+			if(children.length + (capture == null ? 0 : 1) + (wildcard == null ? 0 : 1) > 0) {
+				builder.append('{');
+
+				for(int i = 0; i < children.length; i++) {
+					builder.append(children[i]).append(' ');
+				}
+
+				if(capture != null) {
+					builder.append(capture).append(' ');
+				}
+
+				if(wildcard != null) {
+					builder.append('*');
+				}
+
+				builder.setLength(builder.length() - (builder.charAt(builder.length() - 1) == ' ' ? 1 : 0));
+				builder.append('}');
+			}
+
+			return builder.toString();
+		}
+	}
+}
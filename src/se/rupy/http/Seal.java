@@ -0,0 +1,259 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.security.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Stateless sessions; the attributes travel in a <b>seal</b> cookie signed
+ * with HMAC-SHA256 instead of being kept by the server, so any node can
+ * serve any request and nothing is looked up. With <b>seal_crypt</b> the
+ * cookie is also encrypted with AES.<br>
+ * <br>
+ * The same attributes as in the {@link Vault} are kept and the cookie is
+ * only sent again when they changed or half the timeout has passed. Since
+ * the cookie is a header, change the session before the reply is written.
+ * The services get {@link Service#CREATE} but never a timeout or
+ * disconnect, and a cookie for one host is not valid on another.
+ *
+ * @author marc
+ */
+public class Seal {
+	static String NAME = "seal";
+	static int LIMIT = 4000, TAG = 16;
+
+	private static char[] BASE_64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static int[] INDEX = new int[128];
+
+	static {
+		for(int i = 0; i < INDEX.length; i++) {
+			INDEX[i] = -1;
+		}
+
+		for(int i = 0; i < BASE_64.length; i++) {
+			INDEX[BASE_64[i]] = i;
+		}
+	}
+
+	private SecretKeySpec sign, crypt;
+	private long timeout;
+
+	/**
+	 * @param secret shared by all nodes.
+	 * @param crypt if the cookie should be encrypted.
+	 * @param timeout session timeout in milliseconds.
+	 * @throws Exception if the algorithms are missing.
+	 */
+	protected Seal(String secret, boolean crypt, long timeout) throws Exception {
+		this.timeout = timeout;
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		sign = new SecretKeySpec(digest.digest(("sign:" + secret).getBytes("UTF-8")), "HmacSHA256");
+
+		if(crypt) {
+			byte[] key = digest.digest(("crypt:" + secret).getBytes("UTF-8"));
+			this.crypt = new SecretKeySpec(key, 0, 16, "AES");
+			Cipher.getInstance("AES/CBC/PKCS5Padding");
+		}
+
+		Mac.getInstance("HmacSHA256");
+	}
+
+	/**
+	 * @param daemon
+	 * @param host the shard, signed with the cookie.
+	 * @param value of the cookie or null.
+	 * @return the session or null if the cookie is missing, forged or old.
+	 */
+	protected Session open(Daemon daemon, String host, String value) {
+		if(value == null) {
+			return null;
+		}
+
+		try {
+			byte[] data = decode(value);
+			int length = data.length - TAG;
+
+			if(length < 1) {
+				return null;
+			}
+
+			byte[] tag = new byte[TAG];
+			System.arraycopy(data, length, tag, 0, TAG);
+
+			if(!MessageDigest.isEqual(tag, tag(host, data, length))) {
+				return null;
+			}
+
+			byte[] plain = null;
+
+			if(data[0] == 1 && crypt == null) {
+				plain = new byte[length - 1];
+				System.arraycopy(data, 1, plain, 0, plain.length);
+			}
+			else if(data[0] == 2 && crypt != null && length > 17) {
+				Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+				cipher.init(Cipher.DECRYPT_MODE, crypt, new IvParameterSpec(data, 1, 16));
+				plain = cipher.doFinal(data, 17, length - 17);
+			}
+			else {
+				return null;
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+			long date = in.readLong();
+
+			if(timeout > 0 && System.currentTimeMillis() - date > timeout) {
+				return null;
+			}
+
+			byte[] body = new byte[plain.length - 8];
+			in.readFully(body);
+			in = new DataInputStream(new ByteArrayInputStream(body));
+
+			String key = in.readUTF();
+			String domain = in.readUTF();
+			long expires = in.readLong();
+
+			Session session = new Session(daemon, host);
+			session.restore(key, domain.length() == 0 ? null : domain, expires, date);
+			Vault.read(in, session);
+			session.stored(Vault.sum(body), date);
+			return session;
+		}
+		catch(Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param session
+	 * @return the value of the cookie or null if it doesn't need to be sent.
+	 * @throws IOException if the cookie is too large.
+	 */
+	protected String cookie(Session session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(session.key());
+		out.writeUTF(session.domain() == null ? "" : session.domain());
+		out.writeLong(session.expires());
+		Vault.write(out, session);
+
+		byte[] body = bytes.toByteArray();
+		int sum = Vault.sum(body);
+		long now = System.currentTimeMillis();
+
+		if(session.set() && sum == session.sum() && now - session.saved() < timeout / 2) {
+			return null;
+		}
+
+		bytes = new ByteArrayOutputStream(body.length + 64);
+		out = new DataOutputStream(bytes);
+		out.writeLong(now);
+		out.write(body);
+
+		byte[] plain = bytes.toByteArray();
+		bytes.reset();
+
+		try {
+			if(crypt == null) {
+				bytes.write(1);
+				bytes.write(plain);
+			}
+			else {
+				byte[] iv = new byte[16];
+				Event.random.nextBytes(iv);
+
+				Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+				cipher.init(Cipher.ENCRYPT_MODE, crypt, new IvParameterSpec(iv));
+
+				bytes.write(2);
+				bytes.write(iv);
+				bytes.write(cipher.doFinal(plain));
+			}
+
+			byte[] data = bytes.toByteArray();
+			bytes.write(tag(session.host(), data, data.length));
+
+			String value = encode(bytes.toByteArray());
+
+			if(value.length() > LIMIT) {
+				throw new IOException("Seal cookie is larger than " + LIMIT + " characters.");
+			}
+
+			session.stored(sum, now);
+			return value;
+		}
+		catch(GeneralSecurityException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private byte[] tag(String host, byte[] data, int length) throws GeneralSecurityException, IOException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(sign);
+		mac.update(host.getBytes("UTF-8"));
+		mac.update((byte) 0);
+		mac.update(data, 0, length);
+
+		byte[] tag = new byte[TAG];
+		System.arraycopy(mac.doFinal(), 0, tag, 0, TAG);
+		return tag;
+	}
+
+	/*
+	 * URL safe base64 without padding, so it fits in a cookie.
+	 */
+	static String encode(byte[] data) {
+		StringBuilder builder = new StringBuilder((data.length * 4 + 2) / 3);
+
+		for(int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+
+			if(i + 1 < data.length) b |= (data[i + 1] & 0xff) << 8;
+			if(i + 2 < data.length) b |= data[i + 2] & 0xff;
+
+			builder.append(BASE_64[(b >> 18) & 63]);
+			builder.append(BASE_64[(b >> 12) & 63]);
+
+			if(i + 1 < data.length) builder.append(BASE_64[(b >> 6) & 63]);
+			if(i + 2 < data.length) builder.append(BASE_64[b & 63]);
+		}
+
+		return builder.toString();
+	}
+
+	static byte[] decode(String text) throws IOException {
+		int length = text.length() * 3 / 4;
+		byte[] data = new byte[length];
+		int bits = 0, count = 0, j = 0;
+
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if(c >= 128 || INDEX[c] < 0) {
+				throw new IOException("Seal cookie is not base64.");
+			}
+
+			bits = (bits << 6) | INDEX[c];
+			count += 6;
+
+			if(count >= 8) {
+				count -= 8;
+
+				if(j < length) {
+					data[j++] = (byte) (bits >> count);
+				}
+			}
+		}
+
+		return data;
+	}
+
+	public String toString() {
+		return "hmac" + (crypt == null ? "" : "+aes") + ", " + (timeout / 1000) + " seconds";
+	}
+}
@@ -57,10 +57,25 @@ public abstract class Service implements Chain.Link {
 	 * throw event; // stop the chain
 	 * </pre>
 	 * 
+	 * A path can also capture segments and end with a wildcard, for example 
+	 * "/user/:id/photos" or "/static/*", see {@link Router}; then 
+	 * event.query().path("id") returns the captured segment.
+	 * 
 	 * @return the path (URI) to the service(s).
 	 */
 	public abstract String path();
 
+	/**
+	 * Lets rupy keep the reply of this service for a short while and send 
+	 * it to everyone without running the chain, see {@link Micro}. For 
+	 * example "ttl=2000 stale=30000 param=page".
+	 * 
+	 * @return the micro-cache rule or null.
+	 */
+	public String cache() {
+		return null;
+	}
+
 	/**
 	 * Initiate service dependencies. This is called when you hot-deploy the
 	 * application / start the server. Important: This will be called for every 
@@ -11,36 +11,60 @@ import java.util.*;
  */
 public class Session extends Hash {
 	private Daemon daemon;
-	private Chain service;
-	private Chain event;
-	private boolean set;
-	private String key, domain, host;
-	private long date, expires;
+	private Set service, event;
+	private boolean set, dirty;
+	private String key, domain, host, owner;
+	private long date, expires, saved, version, replicated;
+	private HashMap sums;
+	private int sum, stored;
 
 	protected Session(Daemon daemon, String host) {
 		super(false);
 		this.daemon = daemon;
+		this.host = host;
 
-		service = new Chain();
-		event = new Chain();
+		service = Collections.newSetFromMap(new IdentityHashMap(2));
+		event = Collections.newSetFromMap(new IdentityHashMap(2));
 
 		touch();
 	}
 
 	protected void add(Service service) {
-		if (!this.service.contains(service)) {
+		synchronized (this.service) {
 			this.service.add(service);
 		}
 	}
 
 	protected void add(Event event) {
-		if (!this.event.contains(event)) {
+		synchronized (this.event) {
 			this.event.add(event);
 		}
 	}
 
+	/**
+	 * @return a copy of the services of this session.
+	 */
+	protected Chain service() {
+		Chain chain = new Chain();
+
+		synchronized (service) {
+			chain.addAll(service);
+		}
+
+		return chain;
+	}
+
+	/**
+	 * @return a copy of the events of this session.
+	 */
 	public Chain event() {
-		return event;
+		Chain chain = new Chain();
+
+		synchronized (event) {
+			chain.addAll(event);
+		}
+
+		return chain;
 	}
 	
 	protected Daemon daemon() {
@@ -51,15 +75,23 @@ public class Session extends Hash {
 		remove(null);
 	}
 
-	protected synchronized boolean remove(Event event) throws Exception {
+	protected boolean remove(Event event) throws Exception {
 		if (event == null) {
-			this.event.clear();
-			service.exit(this, Service.TIMEOUT);
+			synchronized (this.event) {
+				this.event.clear();
+			}
+
+			exit(Service.TIMEOUT);
 			return true;
 		} else {
-			boolean found = this.event.remove(event);
-			if (this.event.isEmpty() && found) {
-				service.exit(this, Service.DISCONNECT);
+			boolean last = false;
+
+			synchronized (this.event) {
+				last = this.event.remove(event) && this.event.isEmpty();
+			}
+
+			if (last) {
+				exit(Service.DISCONNECT);
 				return true;
 			}
 		}
@@ -67,6 +99,19 @@ public class Session extends Hash {
 		return false;
 	}
 
+	/*
+	 * Calls the services outside of the lock.
+	 */
+	private void exit(int type) throws Exception {
+		Chain chain = new Chain();
+
+		synchronized (service) {
+			chain.addAll(service);
+		}
+
+		chain.exit(this, type);
+	}
+
 	/**
 	 * Has the session cookie been set?
 	 * 
@@ -93,6 +138,7 @@ public class Session extends Hash {
 
 	protected void expires(long expires) {
 		this.expires = expires;
+		dirty = true;
 		set = false;
 	}
 
@@ -102,9 +148,17 @@ public class Session extends Hash {
 
 	protected void key(String key) {
 		this.key = key;
+		dirty = true;
 		set = false;
 	}
 
+	/**
+	 * @return the shard of this session.
+	 */
+	protected String host() {
+		return host;
+	}
+
 	public String domain() {
 		return domain;
 	}
@@ -121,15 +175,16 @@ public class Session extends Hash {
 		if (key == null)
 			return;
 
-		//synchronized (daemon.session()) {
-			daemon.session().remove(this.key);
-			this.key = key;
-			daemon.session().put(key, this);
-		//}
+		if(daemon.seal() == null) {
+			daemon.session().move(this, key);
+		}
+
+		this.key = key;
 
 		this.domain = domain;
 		this.expires = expires;
 
+		dirty = true;
 		set = false;
 	}
 
@@ -137,6 +192,110 @@ public class Session extends Hash {
 		return date;
 	}
 
+	/**
+	 * Sets what was stored in the {@link Vault}.
+	 * @param key
+	 * @param domain
+	 * @param expires
+	 * @param date
+	 */
+	protected void restore(String key, String domain, long expires, long date) {
+		this.key = key;
+		this.domain = domain;
+		this.expires = expires;
+		this.date = date;
+		set = true;
+	}
+
+	/**
+	 * @param sum checksum of the stored copy.
+	 * @param saved date of the stored copy.
+	 */
+	protected void stored(int sum, long saved) {
+		this.sum = sum;
+		this.saved = saved;
+
+		stored = changes();
+		dirty = false;
+	}
+
+	/**
+	 * @return true if the key or attributes changed since it was stored.
+	 */
+	protected boolean changed() {
+		return dirty || changes() != stored;
+	}
+
+	protected int sum() {
+		return sum;
+	}
+
+	protected long saved() {
+		return saved;
+	}
+
+	/**
+	 * @return the cluster node that changed this session last, or null 
+	 * if it's not replicated.
+	 */
+	public String owner() {
+		return owner;
+	}
+
+	/**
+	 * @param owner
+	 * @param version of the last change sent or applied.
+	 * @param replicated date of the last change.
+	 */
+	protected void replicated(String owner, long version, long replicated) {
+		this.owner = owner;
+		this.version = version;
+		this.replicated = replicated;
+	}
+
+	protected long version() {
+		return version;
+	}
+
+	protected long replicated() {
+		return replicated;
+	}
+
+	/**
+	 * @return the checksum of each attribute as it was last replicated.
+	 */
+	protected HashMap sums() {
+		if(sums == null) {
+			sums = new HashMap();
+		}
+
+		return sums;
+	}
+
+	/**
+	 * @return a copy with the attributes, services and events of this 
+	 * session, to change without changing this one.
+	 */
+	protected Session copy() {
+		Session copy = (Session) clone();
+		copy.service = Collections.newSetFromMap(new IdentityHashMap(2));
+		copy.event = Collections.newSetFromMap(new IdentityHashMap(2));
+
+		synchronized (service) {
+			copy.service.addAll(service);
+		}
+
+		synchronized (event) {
+			copy.event.addAll(event);
+		}
+
+		if(sums != null) {
+			copy.sums = new HashMap(sums);
+		}
+
+		return copy;
+	}
+
 	protected void touch() {
 		date = System.currentTimeMillis();
 	}
@@ -0,0 +1,466 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sessions by key, in one shard per hosted archive so hosts don't share a
+ * lock or evict each other. A shard keeps the least recently used session
+ * first and holds at most <b>sessions</b>; beyond that the oldest are
+ * removed and get {@link Service#TIMEOUT} on the next heartbeat, so
+ * the services are never called with a shard locked.<br>
+ * <br>
+ * With a {@link Vault} the sessions that change are also stored there at
+ * the end of each request, the evicted ones stay there and only their
+ * services are kept until they are loaded again or time out there, and
+ * the ones not on the heap are loaded from it. With a 
+ * {@link Replica} they are also sent to and asked for from the cluster.
+ *
+ * @author marc
+ */
+public class Sessions {
+	private ConcurrentHashMap shards;
+	private LinkedList evicted;
+	private HashMap parked;
+	private Daemon daemon;
+	private Vault vault;
+	private Replica replica;
+	private int max;
+
+	/**
+	 * @param daemon
+	 * @param max sessions per shard or 0 for no limit.
+	 */
+	protected Sessions(Daemon daemon, int max) {
+		this.daemon = daemon;
+		this.max = max;
+
+		shards = new ConcurrentHashMap();
+		evicted = new LinkedList();
+		parked = new HashMap();
+	}
+
+	protected void vault(Vault vault) {
+		this.vault = vault;
+	}
+
+	public Vault vault() {
+		return vault;
+	}
+
+	protected void replica(Replica replica) {
+		this.replica = replica;
+	}
+
+	public Replica replica() {
+		return replica;
+	}
+
+	private Shard shard(String host) {
+		Shard shard = (Shard) shards.get(host);
+
+		if(shard == null) {
+			shard = new Shard();
+			Shard old = (Shard) shards.putIfAbsent(host, shard);
+
+			if(old != null) {
+				shard = old;
+			}
+		}
+
+		return shard;
+	}
+
+	/**
+	 * @param host the shard.
+	 * @param key
+	 * @return the session or null.
+	 */
+	protected Session get(String host, String key) {
+		Shard shard = (Shard) shards.get(host);
+
+		if(shard != null) {
+			synchronized (shard) {
+				Session session = (Session) shard.get(key);
+
+				if(session != null || (vault == null && replica == null)) {
+					return session;
+				}
+			}
+		}
+		else if(vault == null && replica == null) {
+			return null;
+		}
+
+		Session session = null;
+
+		try {
+			if(vault != null) {
+				session = vault.load(daemon, host, key);
+				unpark(session);
+			}
+
+			if(session == null && replica != null && replica.fetch(host, key)) {
+				return peek(host, key);
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace(daemon.out);
+		}
+
+		if(session == null) {
+			return null;
+		}
+
+		shard = shard(host);
+
+		synchronized (shard) {
+			Session old = (Session) shard.get(key);
+
+			if(old != null) {
+				return old;
+			}
+
+			put(shard, key, session);
+		}
+
+		return session;
+	}
+
+	/**
+	 * @param host
+	 * @param key
+	 * @return the session if it's on the heap.
+	 */
+	protected Session peek(String host, String key) {
+		Shard shard = (Shard) shards.get(host);
+
+		if(shard == null) {
+			return null;
+		}
+
+		synchronized (shard) {
+			return (Session) shard.get(key);
+		}
+	}
+
+	/**
+	 * Puts a session from another node, over the one with the same key.
+	 * @param session
+	 */
+	protected void replace(Session session) {
+		Shard shard = shard(session.host());
+
+		synchronized (shard) {
+			put(shard, session.key(), session);
+		}
+	}
+
+	/**
+	 * Removes a session without telling the services, when another 
+	 * node says it's gone.
+	 * @param host
+	 * @param key
+	 */
+	protected void drop(String host, String key) {
+		Shard shard = (Shard) shards.get(host);
+
+		if(shard != null) {
+			synchronized (shard) {
+				shard.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @param session with the key it wants.
+	 * @return false if the key is taken.
+	 */
+	protected boolean add(Session session) {
+		try {
+			if(vault != null && vault.contains(session.host(), session.key())) {
+				return false;
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace(daemon.out);
+		}
+
+		Shard shard = shard(session.host());
+
+		synchronized (shard) {
+			if(shard.containsKey(session.key())) {
+				return false;
+			}
+
+			put(shard, session.key(), session);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Moves the session to another key.
+	 * @param session
+	 * @param key the new key.
+	 */
+	protected void move(Session session, String key) {
+		remove(session);
+
+		if(replica != null) {
+			try {
+				replica.expire(session);
+			}
+			catch(IOException e) {
+				e.printStackTrace(daemon.out);
+			}
+
+			session.replicated(null, 0, 0);
+			session.sums().clear();
+		}
+
+		Shard shard = shard(session.host());
+
+		synchronized (shard) {
+			if(session.key() != null) {
+				shard.remove(session.key());
+			}
+
+			put(shard, key, session);
+		}
+	}
+
+	private void put(Shard shard, String key, Session session) {
+		shard.put(key, session);
+
+		if(max > 0 && shard.size() > max) {
+			Iterator it = shard.values().iterator();
+			Session eldest = (Session) it.next();
+			it.remove();
+
+			synchronized (evicted) {
+				evicted.add(eldest);
+			}
+		}
+	}
+
+	/**
+	 * Removes the sessions that have been idle longer than the timeout,
+	 * oldest first, and the ones evicted since last time.
+	 * @param timeout in milliseconds.
+	 * @return the removed sessions.
+	 */
+	protected List expire(long timeout) {
+		LinkedList list = new LinkedList();
+		long now = System.currentTimeMillis();
+
+		synchronized (evicted) {
+			list.addAll(evicted);
+			evicted.clear();
+		}
+
+		Iterator it = null;
+
+		if(vault != null) {
+			it = list.iterator();
+
+			while(it.hasNext()) {
+				Session session = (Session) it.next();
+				save(session);
+				park(session);
+			}
+
+			list.clear();
+
+			try {
+				list.addAll(vault.expire(daemon, this));
+			}
+			catch(IOException e) {
+				e.printStackTrace(daemon.out);
+			}
+
+			it = list.iterator();
+
+			while(it.hasNext()) {
+				unpark((Session) it.next());
+			}
+		}
+
+		it = shards.values().iterator();
+
+		while(it.hasNext()) {
+			Shard shard = (Shard) it.next();
+
+			synchronized (shard) {
+				Iterator it2 = shard.values().iterator();
+
+				while(it2.hasNext()) {
+					Session session = (Session) it2.next();
+
+					if(now - session.date() <= timeout) {
+						break;
+					}
+
+					it2.remove();
+					list.add(session);
+				}
+			}
+		}
+
+		it = list.iterator();
+
+		while(it.hasNext()) {
+			Session session = (Session) it.next();
+			remove(session);
+
+			if(replica != null) {
+				try {
+					replica.expire(session);
+				}
+				catch(IOException e) {
+					e.printStackTrace(daemon.out);
+				}
+			}
+		}
+
+		return list;
+	}
+
+	/*
+	 * Keeps the services of a session that left the heap for the vault, 
+	 * so they are told when it times out there.
+	 */
+	private void park(Session session) {
+		Chain service = session.service();
+
+		if(session.key() != null && !service.isEmpty()) {
+			synchronized (parked) {
+				parked.put(session.host() + '\n' + session.key(), service);
+			}
+		}
+	}
+
+	private void unpark(Session session) {
+		if(session == null) {
+			return;
+		}
+
+		Chain service = null;
+
+		synchronized (parked) {
+			service = (Chain) parked.remove(session.host() + '\n' + session.key());
+		}
+
+		if(service == null) {
+			return;
+		}
+
+		Iterator it = service.iterator();
+
+		while(it.hasNext()) {
+			session.add((Service) it.next());
+		}
+	}
+
+	/**
+	 * Stores the session in the vault and sends it to the cluster if 
+	 * it changed.
+	 * @param session
+	 */
+	protected void save(Session session) {
+		try {
+			if(vault != null) {
+				vault.save(session);
+			}
+
+			if(replica != null) {
+				replica.update(session);
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace(daemon.out);
+		}
+	}
+
+	private void remove(Session session) {
+		if(vault == null) {
+			return;
+		}
+
+		try {
+			vault.remove(session.host(), session.key());
+		}
+		catch(IOException e) {
+			e.printStackTrace(daemon.out);
+		}
+	}
+
+	/**
+	 * Stores the sessions on the heap and closes the vault.
+	 */
+	protected void close() {
+		if(vault == null) {
+			return;
+		}
+
+		Iterator it = shards.values().iterator();
+
+		while(it.hasNext()) {
+			Shard shard = (Shard) it.next();
+			LinkedList list = new LinkedList();
+
+			synchronized (shard) {
+				list.addAll(shard.values());
+			}
+
+			Iterator it2 = list.iterator();
+
+			while(it2.hasNext()) {
+				save((Session) it2.next());
+			}
+		}
+
+		try {
+			vault.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace(daemon.out);
+		}
+	}
+
+	/**
+	 * @return the number of sessions.
+	 */
+	public int size() {
+		int size = 0;
+		Iterator it = shards.values().iterator();
+
+		while(it.hasNext()) {
+			Shard shard = (Shard) it.next();
+
+			synchronized (shard) {
+				size += shard.size();
+			}
+		}
+
+		return size;
+	}
+
+	public int max() {
+		return max;
+	}
+
+	public String toString() {
+		return "shards: " + shards.size() + ", sessions: " + size() + "/" + max + (vault == null ? "" : ", vault: " + vault) + (replica == null ? "" : ", replica: " + replica);
+	}
+
+	/*
+	 * Sessions of one host in access order.
+	 */
+	static class Shard extends LinkedHashMap {
+		Shard() {
+			super(16, 0.75f, true);
+		}
+	}
+}
@@ -2,10 +2,13 @@ package se.rupy.http;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 
 class Test implements Runnable {
 	final static String intro = 
-		"Parallel testing with one worker thread:" + Output.EOL + 
+		"Isolated checks, then parallel testing with one worker thread:" + Output.EOL + 
 		"- Fixed and chunked, read and write." + Output.EOL + 
 		"- Asynchronous non-blocking reply." + Output.EOL + 
 		"- Session creation and timeout." + Output.EOL + 
@@ -27,6 +30,26 @@ class Test implements Runnable {
 
 	final static String original = "bin/http.jar";
 
+	/*
+	 * Isolated checks of single features, run one by one before the 
+	 * parallel test.
+	 */
+	final static String[] check = new String[] {
+		"buffer", 
+		"gzip", 
+		"range", 
+		"etag", 
+		"micro", 
+		"flight", 
+		"router", 
+		"vault", 
+		"seal", 
+		"hash", 
+		"cluster", 
+		"replica", 
+		"forward"
+	};
+
 	protected boolean failed;
 	protected int loop, done, http;
 	protected String host, name;
@@ -174,6 +197,17 @@ class Test implements Runnable {
 
 		Thread.sleep(100);
 
+		for(int i = 0; i < check.length; i++) {
+			try {
+				check(check[i]);
+				System.out.println("Checked: " + check[i]);
+			}
+			catch(Throwable t) {
+				System.out.println("Check failed: " + check[i] + " (" + t + ")");
+				failed = true;
+			}
+		}
+
 		time = System.currentTimeMillis();
 
 		System.out.println("START");
@@ -196,7 +230,7 @@ class Test implements Runnable {
 			thread.wait();
 		}
 
-		boolean failed = false;
+		boolean failed = this.failed;
 
 		for(int i = 0; i < test.length; i++) {
 			if(test[i].failed()) {
@@ -211,6 +245,1106 @@ class Test implements Runnable {
 		System.exit(0);
 	}
 
+	void check(String name) throws Exception {
+		if(name.equals("buffer")) {
+			buffer();
+		}
+		else if(name.equals("gzip")) {
+			gzip();
+		}
+		else if(name.equals("range")) {
+			range("range.bin", 3000);
+			range("large.bin", 3000000);
+		}
+		else if(name.equals("etag")) {
+			etag();
+		}
+		else if(name.equals("micro")) {
+			micro();
+		}
+		else if(name.equals("flight")) {
+			flight();
+		}
+		else if(name.equals("router")) {
+			router();
+		}
+		else if(name.equals("vault")) {
+			vault();
+		}
+		else if(name.equals("seal")) {
+			seal(false);
+			seal(true);
+		}
+		else if(name.equals("hash")) {
+			hash();
+		}
+		else if(name.equals("cluster")) {
+			cluster();
+		}
+		else if(name.equals("replica")) {
+			replica();
+		}
+		else if(name.equals("forward")) {
+			forward();
+		}
+	}
+
+	/*
+	 * Writes a static file for the checks.
+	 */
+	static File content(String name, byte[] data, long date) throws IOException {
+		File file = new File("app" + File.separator + "content" + File.separator + "check" + File.separator + name);
+		file.getParentFile().mkdirs();
+		file.getParentFile().deleteOnExit();
+		file.deleteOnExit();
+
+		OutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+
+		file.setLastModified(date);
+		return file;
+	}
+
+	static void expect(boolean ok, String what) throws Exception {
+		if(!ok) {
+			throw new Exception(what);
+		}
+	}
+
+	/*
+	 * Echoes random bodies through read(ByteBuffer) and write(ByteBuffer) 
+	 * with heap and direct buffers, smaller and larger than the IO buffer.
+	 */
+	void buffer() throws Exception {
+		daemon.add(new se.rupy.http.Service() {
+			public String path() { return "/buffer"; }
+			public void filter(Event event) throws Event, Exception {
+				int size = Integer.parseInt(event.query().header("size"));
+				boolean direct = event.query().header("direct") != null;
+				ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+				ByteArrayOutputStream all = new ByteArrayOutputStream();
+
+				while(event.input().read(buffer) > -1) {
+					buffer.flip();
+					byte[] data = new byte[buffer.remaining()];
+					buffer.get(data);
+					all.write(data);
+					buffer.clear();
+				}
+
+				byte[] data = all.toByteArray();
+				ByteBuffer out = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.wrap(data);
+
+				if(direct) {
+					out.put(data);
+					out.flip();
+				}
+
+				event.output().write(out);
+			}
+		});
+
+		int[] sizes = {700, 100000};
+		Random random = new Random(1);
+
+		for(int i = 0; i < sizes.length; i++) {
+			for(int j = 0; j < 2; j++) {
+				byte[] body = new byte[sizes[i] * 3 + 17];
+				random.nextBytes(body);
+
+				Response response = http("POST", "/buffer", "Size: " + sizes[i] + "\r\n" + (j == 1 ? "Direct: true\r\n" : ""), body);
+				expect(response.code == 200, "code " + response.code);
+				expect(Arrays.equals(body, response.body), "echo of " + body.length + (j == 1 ? " direct" : " heap"));
+			}
+		}
+	}
+
+	/*
+	 * Deploy writes a gzip sibling with the date of the original, which 
+	 * is sent to clients that accept it while the others get the original.
+	 */
+	void gzip() throws Exception {
+		StringBuilder text = new StringBuilder();
+
+		for(int i = 0; i < 1000; i++) {
+			text.append("body { margin: " + i + "px; }\n");
+		}
+
+		byte[] css = text.toString().getBytes();
+		long date = System.currentTimeMillis() / 1000 * 1000 - 60000;
+		File file = content("gzip.css", css, date);
+		File small = content("small.css", "p {}".getBytes(), date);
+		Deploy.compress(Arrays.asList(new File[] {file, small}));
+
+		File gzip = new File(file.getPath() + ".gz");
+		gzip.deleteOnExit();
+		expect(gzip.exists() && gzip.lastModified() == file.lastModified(), "sibling");
+		expect(!new File(small.getPath() + ".gz").exists(), "small sibling");
+
+		Response response = http("GET", "/check/gzip.css", "Accept-Encoding: deflate, gzip\r\n", null);
+		expect(response.code == 200, "code " + response.code);
+		expect("gzip".equals(response.header("content-encoding")), "encoding " + response.header("content-encoding"));
+		expect("Accept-Encoding".equals(response.header("vary")), "vary " + response.header("vary"));
+
+		InputStream in = new java.util.zip.GZIPInputStream(new ByteArrayInputStream(response.body));
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		Deploy.pipe(in, plain);
+		expect(Arrays.equals(css, plain.toByteArray()), "gzip body");
+
+		response = http("GET", "/check/gzip.css", "Accept-Encoding: gzip;q=0\r\n", null);
+		expect(response.header("content-encoding") == null, "encoding without gzip");
+		expect(Arrays.equals(css, response.body), "plain body");
+
+		response = http("GET", "/check/gzip.css", null, null);
+		expect(response.header("content-encoding") == null, "encoding without accept");
+		expect(Arrays.equals(css, response.body), "plain body without accept");
+	}
+
+	/*
+	 * Single, suffix, open, multiple and unsatisfiable ranges of a small 
+	 * file that is kept in memory and a large one that is sent from disk.
+	 */
+	void range(String name, int length) throws Exception {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		content(name, data, System.currentTimeMillis() - 60000);
+		String path = "/check/" + name;
+
+		Response response = http("GET", path, "Range: bytes=10-19\r\n", null);
+		expect(response.code == 206, "code " + response.code);
+		expect(("bytes 10-19/" + length).equals(response.header("content-range")), "range " + response.header("content-range"));
+		expect(Arrays.equals(Arrays.copyOfRange(data, 10, 20), response.body), "single body");
+
+		response = http("GET", path, "Range: bytes=-5\r\n", null);
+		expect(response.code == 206 && Arrays.equals(Arrays.copyOfRange(data, length - 5, length), response.body), "suffix");
+
+		response = http("GET", path, "Range: bytes=" + (length - 3) + "-\r\n", null);
+		expect(response.code == 206 && Arrays.equals(Arrays.copyOfRange(data, length - 3, length), response.body), "open");
+
+		response = http("GET", path, "Range: bytes=0-1, 5-6\r\n", null);
+		String type = response.header("content-type");
+		expect(response.code == 206 && type.startsWith("multipart/byteranges; boundary="), "multiple " + type);
+
+		String body = new String(response.body, "ISO-8859-1");
+		String boundary = "--" + type.substring(type.indexOf('=') + 1);
+		expect(body.indexOf("Content-Range: bytes 0-1/" + length) > -1 && body.indexOf("Content-Range: bytes 5-6/" + length) > -1, "parts");
+		expect(body.indexOf(new String(data, 5, 2, "ISO-8859-1")) > -1 && body.trim().endsWith(boundary + "--"), "multiple body");
+
+		response = http("GET", path, "Range: bytes=" + length + "-\r\n", null);
+		expect(response.code == 416 && ("bytes */" + length).equals(response.header("content-range")), "unsatisfiable " + response.code);
+
+		response = http("GET", path, "Range: bytes=10-19\r\nIf-Range: \"old\"\r\n", null);
+		expect(response.code == 200 && Arrays.equals(data, response.body), "if-range " + response.code);
+
+		response = http("GET", path, "Range: lines=1-2\r\n", null);
+		expect(response.code == 200 && Arrays.equals(data, response.body), "invalid " + response.code);
+	}
+
+	/*
+	 * Deployed files get strong tags that answer If-None-Match with 304, 
+	 * and fingerprinted paths are immutable only while the hash matches.
+	 */
+	void etag() throws Exception {
+		byte[] data = "etag check".getBytes();
+		File file = content("etag.txt", data, System.currentTimeMillis() - 60000);
+		content("plain.txt", data, System.currentTimeMillis() - 60000);
+
+		Response response = http("GET", "/check/plain.txt", null, null);
+		expect(response.code == 200 && response.header("etag") == null, "tag without deploy");
+
+		String sha = Deploy.hash(file, "SHA-1");
+		daemon.store().hash(file, sha);
+
+		response = http("GET", "/check/etag.txt", null, null);
+		String tag = response.header("etag");
+		expect(response.code == 200 && ("\"" + sha + "\"").equals(tag), "tag " + tag);
+
+		response = http("GET", "/check/etag.txt", "If-None-Match: " + tag + "\r\n", null);
+		expect(response.code == 304 && response.body.length == 0, "match " + response.code);
+		expect(tag.equals(response.header("etag")), "tag on 304");
+
+		response = http("GET", "/check/etag.txt", "If-None-Match: \"other\", W/" + tag + "\r\n", null);
+		expect(response.code == 304, "weak in list " + response.code);
+
+		response = http("GET", "/check/etag.txt", "If-None-Match: \"other\"\r\n", null);
+		expect(response.code == 200 && Arrays.equals(data, response.body), "no match " + response.code);
+
+		String asset = daemon.asset("content", "/check/etag.txt");
+		String hash = tag.substring(1, 1 + Event.PRINT);
+		expect(asset.equals("/check/etag." + hash + ".txt"), "asset " + asset);
+
+		response = http("GET", asset, null, null);
+		expect(response.code == 200 && Arrays.equals(data, response.body), "asset " + response.code);
+		expect(response.header("cache-control").indexOf("immutable") > -1, "immutable " + response.header("cache-control"));
+
+		response = http("GET", "/check/etag.000000000000.txt", null, null);
+		expect(response.code == 200 && "no-cache".equals(response.header("cache-control")), "old print " + response.header("cache-control"));
+	}
+
+	/*
+	 * Replies are kept per listed parameter and header for the ttl, then 
+	 * the first caller refreshes while the others get the stale copy, and 
+	 * the least recently used are evicted past the limit.
+	 */
+	void micro() throws Exception {
+		final int[] runs = new int[1];
+
+		daemon.add(new se.rupy.http.Service() {
+			public String path() { return "/micro"; }
+			public String cache() { return "ttl=500 stale=5000 param=page header=accept-language"; }
+			public void filter(Event event) throws Event, Exception {
+				synchronized (runs) {
+					runs[0]++;
+					event.output().print("run " + runs[0]);
+				}
+			}
+		});
+
+		expect("run 1".equals(get("/micro?page=1", null)), "first");
+		expect("run 1".equals(get("/micro?page=1", null)), "hit");
+		expect("run 1".equals(get("/micro?page=1&other=2", null)), "other param");
+		expect("run 2".equals(get("/micro?page=2", null)), "param");
+		expect("run 3".equals(get("/micro?page=1", "Accept-Language: sv\r\n")), "header");
+		expect("run 3".equals(get("/micro?page=1", "Accept-Language: sv\r\n")), "header hit");
+
+		Thread.sleep(600);
+		expect("run 4".equals(get("/micro?page=1", null)), "refresh");
+		expect("run 4".equals(get("/micro?page=1", null)), "refreshed");
+
+		Micro micro = new Micro(1000);
+		Micro.Rule rule = new Micro.Rule("ttl=50 stale=5000");
+		micro.land("a", new Micro.Entry(rule, new byte[0], new byte[200], ""));
+		Thread.sleep(100);
+		expect(micro.get("a", null) == null, "first stale refreshes");
+		expect(micro.get("a", null) != null, "others get stale");
+		micro.land("a", null);
+		expect(micro.get("a", null) == null, "refresh again after failure");
+
+		micro = new Micro(1000);
+		rule = new Micro.Rule("ttl=60000");
+		String[] keys = {"a", "b", "c", "d"};
+
+		for(int i = 0; i < keys.length; i++) {
+			micro.land(keys[i], new Micro.Entry(rule, new byte[0], new byte[240], ""));
+		}
+
+		micro.get("a", null);
+		micro.land("e", new Micro.Entry(rule, new byte[0], new byte[240], ""));
+		expect(micro.get("a", null) != null && micro.get("b", null) == null && micro.get("e", null) != null, "lru " + micro);
+		micro.land("f", new Micro.Entry(rule, new byte[0], new byte[300], ""));
+		expect(micro.get("f", null) == null, "larger than a quarter");
+	}
+
+	/*
+	 * Identical requests that arrive while the first is running wait for 
+	 * its reply instead of running the chain; if it fails they run the 
+	 * chain themselves. Needs a daemon with more than one worker.
+	 */
+	void flight() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		Properties properties = new Properties();
+		properties.setProperty("port", "" + socket.getLocalPort());
+		properties.setProperty("threads", "4");
+		socket.close();
+
+		final Daemon daemon = new Daemon(properties);
+		final int[] runs = new int[1];
+
+		daemon.add(new se.rupy.http.Service() {
+			public String path() { return "/flight"; }
+			public String cache() { return "ttl=0 param=fail"; }
+			public void filter(Event event) throws Event, Exception {
+				int run = 0;
+
+				synchronized (runs) {
+					run = ++runs[0];
+				}
+
+				if(run == 1) {
+					Thread.sleep(500);
+				}
+
+				if(event.query().string("fail").length() > 0) {
+					if(run == 1) {
+						throw new Exception("Leader failed.");
+					}
+
+					event.output().print("recovered");
+				}
+				else {
+					event.output().print("flight " + run);
+				}
+			}
+		});
+
+		daemon.start();
+
+		try {
+			String[] paths = {"/flight", "/flight?fail=1"};
+
+			for(int i = 0; i < paths.length; i++) {
+				final List replies = new LinkedList();
+				final String path = paths[i];
+				runs[0] = 0;
+
+				for(int j = 0; j < 8; j++) {
+					new Thread() {
+						public void run() {
+							Object reply = null;
+
+							try {
+								Response response = http(daemon, "GET", path, null, null);
+								reply = response.code + " " + new String(response.body);
+							}
+							catch(Exception e) {
+								reply = e;
+							}
+
+							synchronized (replies) {
+								replies.add(reply);
+								replies.notify();
+							}
+						}
+					}.start();
+
+					if(j == 0) {
+						Thread.sleep(100);
+					}
+				}
+
+				await(replies, 8);
+				expect(replies.size() == 8, path + " replies " + replies.size());
+
+				if(i == 0) {
+					expect(runs[0] == 1, "runs " + runs[0]);
+					expect(Collections.frequency(replies, "200 flight 1") == 8, "shared " + replies);
+				}
+				else {
+					expect(runs[0] == 8, "runs after failure " + runs[0]);
+					expect(Collections.frequency(replies, "200 recovered") == 7, "recovered " + replies);
+					expect(replies.toString().indexOf("500 <pre>java.lang.Exception: Leader failed.") > -1, "failed " + replies);
+				}
+			}
+		}
+		finally {
+			daemon.stop();
+		}
+	}
+
+	static void await(List list, int size) throws InterruptedException {
+		long start = System.currentTimeMillis();
+
+		synchronized (list) {
+			while(list.size() < size && System.currentTimeMillis() - start < 5000) {
+				list.wait(100);
+			}
+		}
+	}
+
+	/*
+	 * The body of a 200 reply.
+	 */
+	String get(String path, String headers) throws Exception {
+		Response response = http("GET", path, headers, null);
+		expect(response.code == 200, path + " " + response.code);
+		return new String(response.body);
+	}
+
+	/*
+	 * Plain paths win over patterns, literals over captures and captures 
+	 * over wildcards, with backtracking when a literal branch dead ends; 
+	 * two patterns for the same paths are refused.
+	 */
+	void router() throws Exception {
+		String[] paths = new String[] {"/user/me", "/user/:id", "/user/:id/photos", "/user/:id/*", "/user/new/photos", "/static/*"};
+		HashMap chains = new HashMap();
+
+		for(int i = 0; i < paths.length; i++) {
+			chains.put(paths[i], new Chain());
+		}
+
+		Router router = new Router(chains);
+		Hash captures = new Hash(false);
+
+		expect(router.find("/user/me", captures) == chains.get("/user/me") && captures.isEmpty(), "exact");
+		expect(router.find("/user/42", captures) == chains.get("/user/:id") && "42".equals(captures.get("id")), "capture");
+		expect(router.find("/user/42/photos", captures) == chains.get("/user/:id/photos"), "literal after capture");
+		expect(router.find("/user/new/photos", captures) == chains.get("/user/new/photos") && captures.isEmpty(), "literal over capture");
+		expect(router.find("/user/new/videos", captures) == chains.get("/user/:id/*") && "new".equals(captures.get("id")) && "videos".equals(captures.get("*")), "backtrack " + captures);
+		expect(router.find("/static/a/b.css", captures) == chains.get("/static/*") && "a/b.css".equals(captures.get("*")), "wildcard");
+		expect(router.find("/user", captures) == null && router.find("/user/", captures) == null, "miss");
+
+		chains.put("/user/:name", new Chain());
+
+		try {
+			new Router(chains);
+			expect(false, "ambiguous");
+		}
+		catch(IllegalArgumentException e) {}
+
+		daemon.add(new se.rupy.http.Service() {
+			public String path() { return "/check/:kind/:id"; }
+			public void filter(Event event) throws Event, Exception {
+				event.output().print(event.query().path("kind") + " " + event.query().path("id"));
+			}
+		});
+
+		Response response = http("GET", "/check/book/7", null, null);
+		expect(response.code == 200 && "book 7".equals(new String(response.body)), "served " + response.code);
+	}
+
+	/*
+	 * A record whose length was never written, like after a crash in the 
+	 * middle of a write, ends the log without losing the ones before it; 
+	 * unchanged sessions are not appended again and timed out ones are 
+	 * swept.
+	 */
+	void vault() throws Exception {
+		File file = File.createTempFile("vault", ".bin");
+		file.deleteOnExit();
+
+		Vault vault = new Vault(file, 4096, 60000);
+		String[] keys = new String[] {"one", "two", "torn"};
+
+		for(int i = 0; i < keys.length; i++) {
+			Session session = new Session(daemon, "check");
+			session.restore(keys[i], null, 0, System.currentTimeMillis());
+			session.put("count", (long) i);
+			session.put("name", keys[i]);
+			vault.save(session);
+
+			if(i == 0) {
+				String before = vault.toString();
+				session.touch();
+				vault.save(session);
+				expect(before.equals(vault.toString()), "unchanged " + vault);
+			}
+		}
+
+		vault.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long offset = 8;
+
+		for(int i = 0; i < 2; i++) {
+			raf.seek(offset);
+			offset += raf.readInt();
+		}
+
+		raf.seek(offset);
+		raf.writeInt(0);
+		raf.close();
+
+		vault = new Vault(file, 4096, 60000);
+
+		for(int i = 0; i < 2; i++) {
+			Session session = vault.load(daemon, "check", keys[i]);
+			expect(session != null && session.big("count") == i && keys[i].equals(session.get("name")), "recovered " + keys[i]);
+		}
+
+		expect(vault.load(daemon, "check", "torn") == null, "torn");
+
+		Session session = new Session(daemon, "check");
+		session.restore("three", null, 0, System.currentTimeMillis() - 120000);
+		vault.save(session);
+
+		List expired = vault.expire(daemon, daemon.session());
+		expect(expired.size() == 1 && "three".equals(((Session) expired.get(0)).key()), "expired " + expired);
+		expect(!vault.contains("check", "three") && vault.contains("check", "one"), "swept");
+
+		vault.close();
+	}
+
+	/*
+	 * The cookie opens to the same attributes, is not sent again when 
+	 * nothing changed and is refused if any character, the host or the 
+	 * secret differs.
+	 */
+	void seal(boolean crypt) throws Exception {
+		Seal seal = new Seal("secret", crypt, 60000);
+		Session session = new Session(daemon, "check");
+		session.restore("key", "rupy.se", 0, System.currentTimeMillis());
+		session.put("count", 42);
+		session.put("name", "seal");
+		session.put("data", new byte[] {1, 2, 3});
+
+		String cookie = seal.cookie(session);
+		Session open = seal.open(daemon, "check", cookie);
+		expect(open != null, "open");
+		expect(open.medium("count") == 42 && "seal".equals(open.get("name")), "attributes " + open.contents());
+		expect(Arrays.equals(new byte[] {1, 2, 3}, (byte[]) open.get("data")), "bytes");
+		expect("key".equals(open.key()) && "rupy.se".equals(open.domain()), "key " + open.key() + " " + open.domain());
+		expect(seal.cookie(session) == null, "unchanged");
+
+		for(int i = 0; i < cookie.length() - 1; i += 7) {
+			char c = cookie.charAt(i) == 'A' ? 'B' : 'A';
+			String forged = cookie.substring(0, i) + c + cookie.substring(i + 1);
+			expect(seal.open(daemon, "check", forged) == null, "tampered at " + i);
+		}
+
+		expect(seal.open(daemon, "other", cookie) == null, "host");
+		expect(new Seal("other", crypt, 60000).open(daemon, "check", cookie) == null, "secret");
+		expect(new Seal("secret", !crypt, 60000).open(daemon, "check", cookie) == null, "mode");
+	}
+
+	/*
+	 * Slot and map values mixed through the typed getters, the map 
+	 * methods and the views, which leave the slots in place and write 
+	 * through.
+	 */
+	void hash() throws Exception {
+		Hash hash = new Hash(false);
+
+		for(int i = 0; i < 20; i++) {
+			hash.put("long" + i, (long) i);
+		}
+
+		hash.put("int", 7);
+		hash.put("bit", true);
+		hash.put("text", "value");
+		hash.put("object", new StringBuilder("object"));
+
+		expect(hash.size() == 24 && hash.big("long19") == 19 && hash.medium("int") == 7 && hash.bit("bit", false), "getters");
+		expect(new Long(3).equals(hash.get("long3")) && "value".equals(hash.get("text")), "get");
+
+		HashMap copy = new HashMap();
+		Iterator it = hash.entrySet().iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			copy.put(entry.getKey(), entry.getValue());
+		}
+
+		expect(copy.size() == 24 && copy.equals(hash) && hash.equals(copy), "entries " + copy);
+		expect(hash.keySet().contains("long0") && hash.values().contains(new Integer(7)) && hash.keySet().size() == 24, "views");
+		expect(hash.slots() > 0 && hash.objects().size() == 2, "views moved slots");
+
+		try {
+			Iterator walk = hash.keySet().iterator();
+			walk.next();
+			hash.put("int", 8);
+			walk.next();
+			expect(false, "concurrent");
+		}
+		catch(ConcurrentModificationException e) {}
+
+		expect(new Long(5).equals(hash.remove("long5")) && !hash.containsKey("long5") && hash.size() == 23, "remove slot");
+		expect("value".equals(hash.remove("text")) && hash.size() == 22, "remove object");
+		expect(new Integer(8).equals(hash.put("int", "eight")) && "eight".equals(hash.get("int")) && hash.size() == 22, "slot to object");
+
+		hash.put("text", 1L);
+		expect(hash.big("text") == 1 && hash.objects().size() == 2, "object to slot");
+
+		expect(new Long(0).equals(hash.getOrDefault("long0", "fail")) && "fail".equals(hash.getOrDefault("none", "fail")), "default");
+		expect(new Long(1).equals(hash.putIfAbsent("long1", "other")) && hash.putIfAbsent("none", "new") == null, "if absent");
+		java.util.function.BiFunction add = new java.util.function.BiFunction() {
+			public Object apply(Object a, Object b) {
+				return new Long(((Long) a).longValue() + ((Long) b).longValue());
+			}
+		};
+		java.util.function.BiFunction drop = new java.util.function.BiFunction() {
+			public Object apply(Object key, Object value) {
+				return null;
+			}
+		};
+		java.util.function.Function nine = new java.util.function.Function() {
+			public Object apply(Object key) {
+				return new Integer(9);
+			}
+		};
+
+		expect(new Long(3).equals(hash.merge("long2", new Long(1), add)), "merge");
+		expect(hash.compute("long4", drop) == null && !hash.containsKey("long4"), "compute remove");
+		expect(new Integer(9).equals(hash.computeIfAbsent("nine", nine)) && hash.medium("nine") == 9, "if absent compute");
+		expect(hash.replace("long6", new Long(6), "six") && "six".equals(hash.get("long6")), "replace");
+		expect(hash.remove("long7", new Long(7)) && !hash.containsKey("long7"), "remove value");
+
+		final int[] count = new int[1];
+		hash.forEach(new java.util.function.BiConsumer() {
+			public void accept(Object key, Object value) {
+				count[0]++;
+			}
+		});
+		expect(count[0] == hash.size(), "for each " + count[0] + " " + hash.size());
+
+		Hash clone = (Hash) hash.clone();
+		clone.put("long8", 80L);
+		expect(hash.big("long8") == 8 && clone.big("long8") == 80 && clone.size() == hash.size(), "clone");
+
+		int size = hash.size(), changes = hash.changes();
+		it = hash.keySet().iterator();
+
+		while(it.hasNext()) {
+			Object key = it.next();
+
+			if(key.equals("long10") || key.equals("object")) {
+				it.remove();
+			}
+		}
+
+		expect(!hash.containsKey("long10") && !hash.containsKey("object") && hash.size() == size - 2, "iterator remove");
+		expect(hash.keySet().removeAll(Arrays.asList(new String[] {"long11", "text"})) && hash.size() == size - 4, "remove all");
+		expect(hash.values().remove(new Long(12)) && !hash.containsKey("long12") && hash.size() == size - 5, "values remove");
+		expect(hash.changes() > changes, "removes counted");
+
+		changes = hash.changes();
+		it = hash.entrySet().iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+
+			if(entry.getKey().equals("long13")) {
+				expect(new Long(13).equals(entry.setValue("thirteen")), "set slot");
+			}
+			else if(entry.getKey().equals("none")) {
+				expect("new".equals(entry.setValue("old")), "set object");
+			}
+		}
+
+		expect("thirteen".equals(hash.get("long13")) && "old".equals(hash.get("none")) && hash.size() == size - 5, "set value");
+		expect(hash.changes() > changes, "sets counted");
+
+		hash.clear();
+		expect(hash.isEmpty() && !hash.entrySet().iterator().hasNext(), "clear");
+	}
+
+	/*
+	 * Two nodes without threads or network; lost datagrams are asked for 
+	 * and sent again so a large message is put together in order, and 
+	 * fragments that don't fit, a node with the same name, huge counts 
+	 * and nodes beyond the peer limit are dropped. Load reports are only 
+	 * trusted when signed with the same secret, and the member is where 
+	 * the report came from.
+	 */
+	void cluster() throws Exception {
+		Capture one = new Capture(), two = new Capture(), three = new Capture();
+		Cluster sender = new Cluster(daemon, "one", 0, "secret", one);
+		Cluster receiver = new Cluster(daemon, "two", 0, "secret", two);
+		Cluster forger = new Cluster(daemon, "three", 0, "guess", three);
+		final LinkedList got = new LinkedList();
+
+		receiver.add("check", new Daemon.ClusterListener() {
+			public void receive(byte[] message) {
+				synchronized (got) {
+					got.add(message);
+					got.notify();
+				}
+			}
+		});
+
+		byte[] large = new byte[100000];
+		new Random().nextBytes(large);
+		sender.send("check", "small".getBytes());
+		sender.send("check", large);
+		sender.flush();
+
+		InetAddress local = InetAddress.getLoopbackAddress();
+		List datagrams = new ArrayList(one.sent);
+		one.sent.clear();
+		expect(datagrams.size() > 70, "datagrams " + datagrams.size());
+
+		for(int i = 0; i < datagrams.size(); i++) {
+			byte[] data = (byte[]) datagrams.get(i);
+
+			if(i != 1 && i != 2) {
+				receiver.handle(data, data.length, local);
+			}
+		}
+
+		expect(two.sent.size() == 1 && ((byte[]) two.sent.get(0))[1] == 'N', "nack " + two.sent.size());
+		byte[] nack = (byte[]) two.sent.removeFirst();
+		sender.handle(nack, nack.length, local);
+		expect(one.sent.size() == 2, "resent " + one.sent.size());
+
+		while(!one.sent.isEmpty()) {
+			byte[] data = (byte[]) one.sent.removeFirst();
+			receiver.handle(data, data.length, local);
+		}
+
+		await(got, 2);
+		expect(got.size() == 2 && "small".equals(new String((byte[]) got.get(0))), "small");
+		expect(Arrays.equals(large, (byte[]) got.get(1)), "large " + ((byte[]) got.get(1)).length);
+
+		got.clear();
+		long epoch = new Random().nextLong();
+		byte[][] evil = new byte[][] {
+			datagram("evil", epoch, 1, 7, 0, Integer.MAX_VALUE, new byte[100]), 
+			datagram("evil", epoch, 2, 8, 1, 3, new byte[100]), 
+			datagram("evil", epoch, 3, 9, 0, 2, new byte[100]), 
+			datagram("evil", epoch, 4, 9, 0, 2, new byte[100]), 
+			datagram("two", epoch, 1, 10, 0, 1, "twin".getBytes()), 
+			datagram("evil", epoch, 5, 11, 0, 1, "ok".getBytes())
+		};
+
+		for(int i = 0; i < evil.length; i++) {
+			receiver.handle(evil[i], evil[i].length, local);
+		}
+
+		await(got, 1);
+		expect(got.size() == 1 && "ok".equals(new String((byte[]) got.get(0))), "dropped " + got.size());
+		expect(receiver.toString().indexOf("twins: 1") > -1, "twin " + receiver);
+
+		int peers = Cluster.PEERS;
+		Cluster.PEERS = receiver.peers().size();
+		byte[] stranger = datagram("stranger", epoch, 1, 12, 0, 1, "no".getBytes());
+		receiver.handle(stranger, stranger.length, local);
+		Cluster.PEERS = peers;
+		expect(receiver.toString().indexOf("strangers: 1") > -1 && !receiver.peers().containsKey("stranger"), "strangers " + receiver);
+
+		InetAddress remote = InetAddress.getByName("10.0.0.1");
+		sender.gossip(System.currentTimeMillis());
+		sender.flush();
+		forger.gossip(System.currentTimeMillis());
+		forger.flush();
+
+		byte[] report = (byte[]) one.sent.removeFirst();
+		receiver.handle(report, report.length, remote);
+		report = (byte[]) three.sent.removeFirst();
+		receiver.handle(report, report.length, remote);
+
+		List members = receiver.members();
+		Cluster.Member member = (Cluster.Member) members.get(members.size() - 1);
+		expect(members.size() == 2 && member.name().equals("one") && remote.equals(member.address()), "members " + members.size());
+		expect(receiver.toString().indexOf("forged: 1") > -1, "forged " + receiver);
+
+		one.close();
+		two.close();
+		three.close();
+	}
+
+	/*
+	 * An owner and a backup on clusters without threads or network; the 
+	 * backup gets the whole session and then deltas, drops its copy when 
+	 * a version is lost, asks for it again and drops it when the owner 
+	 * times out.
+	 */
+	void replica() throws Exception {
+		Capture one = new Capture(), two = new Capture();
+		Cluster first = new Cluster(daemon, "one", 0, null, one), second = new Cluster(daemon, "two", 0, null, two);
+		Sessions owners = new Sessions(daemon, 0), backups = new Sessions(daemon, 0);
+		Replica owner = new Replica(daemon, first, owners, "secret", 50, 60000);
+		Replica backup = new Replica(daemon, second, backups, "secret", 50, 60000);
+		LinkedList asked = new LinkedList(), got = new LinkedList();
+		first.add(Replica.TOPIC, listener(asked));
+		second.add(Replica.TOPIC, listener(got));
+		String key = "replicated-key_42";
+
+		Session session = new Session(daemon, "check");
+		session.restore(key, null, 0, System.currentTimeMillis());
+		session.put("count", 1L);
+		session.put("name", "one");
+		owners.add(session);
+		owner.update(session);
+		deliver(first, one, second, got, 1);
+
+		Session copy = backups.peek("check", key);
+		expect(copy != null && copy.version() == 1 && copy.big("count") == 1 && "one".equals(copy.get("name")), "full " + backup);
+
+		session.put("count", 2L);
+		session.remove("name");
+		owner.update(session);
+		deliver(first, one, second, got, 1);
+
+		Session delta = backups.peek("check", key);
+		expect(delta != copy && delta.version() == 2 && delta.big("count") == 2 && !delta.containsKey("name"), "delta " + backup);
+		expect(copy.version() == 1 && "one".equals(copy.get("name")), "copy");
+
+		session.replicated(session.owner(), session.version() + 1, session.replicated());
+		session.put("count", 4L);
+		owner.update(session);
+		deliver(first, one, second, got, 1);
+		expect(backups.peek("check", key) == null && backup.toString().indexOf("stale: 1") > -1, "gap " + backup);
+
+		expect(!backup.fetch("check", key), "fetch");
+		deliver(second, two, first, asked, 1);
+		deliver(first, one, second, got, 1);
+
+		copy = backups.peek("check", key);
+		expect(copy != null && copy.version() == 4 && copy.big("count") == 4, "fetched " + backup);
+
+		owner.expire(session);
+		deliver(first, one, second, got, 1);
+		expect(backups.peek("check", key) == null, "expired " + backup);
+
+		one.close();
+		two.close();
+	}
+
+	/*
+	 * A socket plays the member; it gets the request with the headers 
+	 * added, a closed port gives the client a 503, and so do too many 
+	 * connections. Members never get connections from other members 
+	 * forwarded back, and quiet pipes are closed.
+	 */
+	void forward() throws Exception {
+		InetAddress local = InetAddress.getLoopbackAddress();
+		ServerSocketChannel accept = ServerSocketChannel.open();
+		accept.socket().bind(new InetSocketAddress(local, 0));
+		ServerSocket server = new ServerSocket(0, 10, local);
+		Cluster.Member member = new Cluster.Member("member", local, 60000);
+		member.port = server.getLocalPort();
+		Forward forward = new Forward(daemon);
+
+		Socket client = forward(accept, forward, member, "GET /forward HTTP/1.1\r\nHost: check\r\nConnection: keep-alive\r\n\r\n");
+		Socket socket = server.accept();
+		socket.setSoTimeout(5000);
+		String head = head(socket.getInputStream());
+		expect(head.indexOf("\r\n" + Forward.HEADER + ": " + daemon.name() + "\r\n") > -1 && 
+				head.indexOf("\r\nX-Forwarded-For: " + local.getHostAddress() + "\r\n") > -1 && 
+				head.indexOf("Connection: keep-alive\r\n") < head.indexOf(Forward.HEADER) && 
+				head.endsWith("\r\nConnection: close\r\n\r\n"), "headers " + head);
+
+		socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+		socket.close();
+		String reply = Deploy.Client.toString(client.getInputStream());
+		expect(reply.endsWith("\r\n\r\nok"), "reply " + reply);
+		client.close();
+
+		Cluster.Member down = new Cluster.Member("down", local, 60000);
+		ServerSocket closed = new ServerSocket(0, 1, local);
+		down.port = closed.getLocalPort();
+		closed.close();
+
+		client = forward(accept, forward, down, "GET /forward HTTP/1.1\r\nHost: check\r\n\r\n");
+		reply = Deploy.Client.toString(client.getInputStream());
+		expect(reply.startsWith("HTTP/1.1 503"), "unreachable " + reply);
+		client.close();
+
+		int open = Forward.OPEN;
+		Forward.OPEN = 0;
+		client = forward(accept, forward, member, null);
+		Forward.OPEN = open;
+		reply = Deploy.Client.toString(client.getInputStream());
+		expect(reply.startsWith("HTTP/1.1 503") && forward.toString().indexOf("rejected: 1") > -1, "rejected " + forward);
+		client.close();
+
+		Capture one = new Capture(), two = new Capture();
+		Cluster sender = new Cluster(daemon, "one", 0, "secret", one);
+		Cluster receiver = new Cluster(daemon, "two", 1000, "secret", two);
+		sender.gossip(System.currentTimeMillis());
+		sender.flush();
+		byte[] report = (byte[]) one.sent.removeFirst();
+		receiver.handle(report, report.length, local);
+		expect(receiver.lightest(Float.MAX_VALUE, local) == null, "loop");
+		expect(receiver.lightest(Float.MAX_VALUE, InetAddress.getByName("10.0.0.1")) != null, "lightest " + receiver.members());
+		one.close();
+		two.close();
+
+		int idle = Forward.IDLE;
+		Forward.IDLE = 200;
+		forward = new Forward(daemon);
+		client = forward(accept, forward, member, "GET /forward HTTP/1.1\r\nHost: check\r\n\r\n");
+		socket = server.accept();
+		reply = Deploy.Client.toString(client.getInputStream());
+		Forward.IDLE = idle;
+		expect(reply.length() == 0 && forward.toString().indexOf("idle: 1") > -1, "idle " + forward);
+		socket.close();
+		client.close();
+
+		server.close();
+		accept.close();
+	}
+
+	/*
+	 * Connects a client and hands the accepted end to the forward, like 
+	 * the daemon does when it detaches an event; then sends the request 
+	 * unless it's null.
+	 */
+	static Socket forward(ServerSocketChannel accept, Forward forward, Cluster.Member member, String request) throws IOException {
+		Socket client = new Socket(accept.socket().getInetAddress(), accept.socket().getLocalPort());
+		client.setSoTimeout(5000);
+		SocketChannel channel = accept.accept();
+		channel.configureBlocking(false);
+		forward.add(channel, member);
+
+		if(request != null) {
+			client.getOutputStream().write(request.getBytes());
+		}
+
+		return client;
+	}
+
+	/*
+	 * The request line and headers, up to and with the empty line.
+	 */
+	static String head(InputStream in) throws IOException {
+		StringBuilder head = new StringBuilder();
+
+		while(!head.toString().endsWith("\r\n\r\n")) {
+			int c = in.read();
+
+			if(c < 0) {
+				break;
+			}
+
+			head.append((char) c);
+		}
+
+		return head.toString();
+	}
+
+	/*
+	 * Sends what the cluster queued to the other and waits for the 
+	 * messages to be handled.
+	 */
+	static void deliver(Cluster from, Capture socket, Cluster to, List got, int count) throws Exception {
+		synchronized (got) {
+			got.clear();
+		}
+
+		from.flush();
+
+		while(!socket.sent.isEmpty()) {
+			byte[] data = (byte[]) socket.sent.removeFirst();
+			to.handle(data, data.length, null);
+		}
+
+		await(got, count);
+	}
+
+	/*
+	 * Counts the messages of a topic, after the listeners added before.
+	 */
+	static Daemon.ClusterListener listener(final List got) {
+		return new Daemon.ClusterListener() {
+			public void receive(byte[] message) {
+				synchronized (got) {
+					got.add(message);
+					got.notify();
+				}
+			}
+		};
+	}
+
+	/*
+	 * One fragment on the check topic, like Cluster.flush() writes it.
+	 */
+	static byte[] datagram(String from, long epoch, long sequence, int id, int index, int count, byte[] part) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0);
+		out.writeByte('M');
+		out.writeUTF(from);
+		out.writeLong(epoch);
+		out.writeLong(sequence);
+		out.writeUTF("check");
+		out.writeInt(id);
+		out.writeInt(index);
+		out.writeInt(count);
+		out.writeShort(part.length);
+		out.write(part);
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Keeps the datagrams instead of sending them.
+	 */
+	static class Capture extends DatagramSocket {
+		LinkedList sent = new LinkedList();
+
+		Capture() throws SocketException {
+			super();
+		}
+
+		public void send(DatagramPacket packet) {
+			byte[] data = new byte[packet.getLength()];
+			System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+			sent.add(data);
+		}
+	}
+
+	/*
+	 * The parts of a reply.
+	 */
+	static class Response {
+		int code;
+		HashMap header = new HashMap();
+		byte[] body;
+
+		String header(String name) {
+			return (String) header.get(name.toLowerCase());
+		}
+	}
+
+	/*
+	 * Sends one request on its own connection and reads the reply, 
+	 * chunked or not.
+	 */
+	Response http(String method, String path, String headers, byte[] body) throws IOException {
+		return http(daemon, method, path, headers, body);
+	}
+
+	static Response http(Daemon daemon, String method, String path, String headers, byte[] body) throws IOException {
+		Socket socket = new Socket("localhost", daemon.port);
+
+		try {
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			out.write((method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" + 
+					(body == null ? "" : "Content-Length: " + body.length + "\r\n") + 
+					(headers == null ? "" : headers) + "\r\n").getBytes());
+
+			if(body != null) {
+				out.write(body);
+			}
+
+			out.flush();
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			Response response = new Response();
+			String line = line(in);
+			response.code = Integer.parseInt(line.split(" ")[1]);
+
+			while((line = line(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				response.header.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			String length = response.header("content-length");
+
+			if("chunked".equalsIgnoreCase(response.header("transfer-encoding"))) {
+				int size;
+
+				while((size = Integer.parseInt(line(in).trim(), 16)) > 0) {
+					byte[] chunk = new byte[size];
+					new DataInputStream(in).readFully(chunk);
+					data.write(chunk);
+					line(in);
+				}
+			}
+			else if(length != null) {
+				byte[] all = new byte[Integer.parseInt(length)];
+
+				if(!method.equals("HEAD")) {
+					new DataInputStream(in).readFully(all);
+				}
+
+				data.write(all);
+			}
+
+			response.body = data.toByteArray();
+			return response;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	static String line(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+
+		while((c = in.read()) > -1 && c != '\n') {
+			if(c != '\r') {
+				line.append((char) c);
+			}
+		}
+
+		return line.toString();
+	}
+
 	private void connect() throws IOException {
 		URL url = new URL("http://" + host + "/" + name);
 
@@ -0,0 +1,650 @@
+package se.rupy.http;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Session store that survives restarts and deploys. Sessions are appended
+ * to the memory mapped <b>vault</b> file when they change and the index
+ * of where each key is lives in a direct buffer, so neither is seen by
+ * the garbage collector. {@link Sessions} keeps the recently used sessions
+ * on the heap as usual and loads the others from here on demand.<br>
+ * <br>
+ * Only String keys with long, int, short, byte, boolean, String and byte[]
+ * values are stored, other values are lost when the session leaves the
+ * heap; a byte[] changed in place has to be put again to be stored.
+ * Sessions that time out while only stored here are removed on the
+ * heartbeat and get {@link Service#TIMEOUT} from the services they had
+ * before they left the heap, but sessions reloaded after a restart don't
+ * notify the services until a new session is created for them. When the
+ * file is full the live sessions are compacted to a new file, twice as
+ * large if more than half of it is in use.
+ *
+ * @author marc
+ */
+public class Vault {
+	static int MAGIC = 0x72757079;
+	static int SWEEP = 10000;
+
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private LongBuffer index;
+	private int slots, used, count;
+	private long end, live, timeout, swept;
+
+	/**
+	 * @param file
+	 * @param size initial bytes of the file, if it's new.
+	 * @param timeout session timeout in milliseconds.
+	 * @throws IOException
+	 */
+	protected Vault(File file, long size, long timeout) throws IOException {
+		this.file = file;
+		this.timeout = timeout;
+
+		if(file.exists() && file.length() > 8) {
+			size = file.length();
+		}
+
+		map(file, size);
+
+		if(map.getInt(0) == MAGIC) {
+			load();
+		}
+		else {
+			map.putInt(0, MAGIC);
+			map.putInt(4, 1);
+			end = 8;
+			index(1024);
+		}
+	}
+
+	private void map(File file, long size) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("Vault can't be larger than " + Integer.MAX_VALUE + " bytes.");
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+		map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/*
+	 * Rebuilds the index from the log, a record with length 0 is the end.
+	 */
+	private void load() throws IOException {
+		long now = System.currentTimeMillis();
+		index((int) Math.min(1 << 24, Math.max(1024, map.capacity() / 128)));
+		end = 8;
+
+		while(end + 4 < map.capacity()) {
+			int length = map.getInt((int) end);
+
+			if(length <= 0 || end + length > map.capacity()) {
+				break;
+			}
+
+			DataInputStream in = record(end);
+			long date = in.readLong();
+			String key = in.readUTF();
+			String host = in.readUTF();
+			in.readUTF();
+			in.readLong();
+			int size = in.readInt();
+
+			if(size < 0 || (timeout > 0 && now - date > timeout)) {
+				unlink(hash(host, key), host, key);
+			}
+			else {
+				link(hash(host, key), host, key, end);
+			}
+
+			end += length;
+		}
+	}
+
+	private void index(int slots) {
+		int size = 1;
+
+		while(size < slots) {
+			size <<= 1;
+		}
+
+		this.slots = size;
+		index = ByteBuffer.allocateDirect(size * 16).asLongBuffer();
+		used = 0;
+		count = 0;
+		live = 0;
+	}
+
+	private DataInputStream record(long offset) {
+		int length = map.getInt((int) offset);
+		byte[] data = new byte[length - 4];
+		ByteBuffer buffer = map.duplicate();
+		buffer.position((int) offset + 4);
+		buffer.get(data);
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+	/*
+	 * FNV-1a of the host and key.
+	 */
+	private static long hash(String host, String key) {
+		long hash = 0xcbf29ce484222325L;
+		String text = host + '\n' + key;
+
+		for(int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	/*
+	 * Linear probe for the slot of the key, or the first free slot if
+	 * free is true and the key isn't there.
+	 */
+	private int slot(long hash, String host, String key, boolean free) throws IOException {
+		int mask = slots - 1;
+		int i = (int) (hash ^ (hash >>> 32)) & mask;
+		int empty = -1;
+
+		while(true) {
+			long offset = index.get(i * 2 + 1);
+
+			if(offset == 0) {
+				return free ? (empty > -1 ? empty : i) : -1;
+			}
+
+			if(offset < 0) {
+				if(empty < 0) {
+					empty = i;
+				}
+			}
+			else if(index.get(i * 2) == hash && same(offset, host, key)) {
+				return i;
+			}
+
+			i = (i + 1) & mask;
+		}
+	}
+
+	private boolean same(long offset, String host, String key) throws IOException {
+		DataInputStream in = record(offset);
+		in.readLong();
+		return in.readUTF().equals(key) && in.readUTF().equals(host);
+	}
+
+	private void link(long hash, String host, String key, long offset) throws IOException {
+		if((used + 1) * 2 > slots) {
+			rehash(Math.max(slots, (count + 1) * 4));
+		}
+
+		int i = slot(hash, host, key, true);
+		long old = index.get(i * 2 + 1);
+
+		if(old > 0) {
+			live -= map.getInt((int) old);
+		}
+		else {
+			if(old == 0) {
+				used++;
+			}
+
+			count++;
+		}
+
+		index.put(i * 2, hash);
+		index.put(i * 2 + 1, offset);
+		live += map.getInt((int) offset);
+	}
+
+	private boolean unlink(long hash, String host, String key) throws IOException {
+		int i = slot(hash, host, key, false);
+
+		if(i < 0) {
+			return false;
+		}
+
+		live -= map.getInt((int) index.get(i * 2 + 1));
+		index.put(i * 2 + 1, -1);
+		count--;
+		return true;
+	}
+
+	private void rehash(int size) throws IOException {
+		LongBuffer old = index;
+		int length = slots;
+		index(size);
+
+		for(int i = 0; i < length; i++) {
+			long offset = old.get(i * 2 + 1);
+
+			if(offset > 0) {
+				DataInputStream in = record(offset);
+				in.readLong();
+				String key = in.readUTF();
+				link(old.get(i * 2), in.readUTF(), key, offset);
+			}
+		}
+	}
+
+	/**
+	 * @param daemon
+	 * @param host the shard.
+	 * @param key
+	 * @return the session or null.
+	 * @throws IOException
+	 */
+	protected synchronized Session load(Daemon daemon, String host, String key) throws IOException {
+		int i = slot(hash(host, key), host, key, false);
+
+		if(i < 0) {
+			return null;
+		}
+
+		long offset = index.get(i * 2 + 1);
+
+		if(timeout > 0 && System.currentTimeMillis() - map.getLong((int) offset + 4) > timeout) {
+			return null;
+		}
+
+		return session(daemon, host, key, offset);
+	}
+
+	private Session session(Daemon daemon, String host, String key, long offset) throws IOException {
+		DataInputStream in = record(offset);
+		long date = in.readLong();
+		byte[] data = new byte[in.available()];
+		in.readFully(data);
+		in = new DataInputStream(new ByteArrayInputStream(data));
+		in.readUTF();
+		in.readUTF();
+		String domain = in.readUTF();
+		long expires = in.readLong();
+
+		Session session = new Session(daemon, host);
+		session.restore(key, domain.length() == 0 ? null : domain, expires, date);
+		read(in, session);
+		session.stored(sum(data), date);
+		return session;
+	}
+
+	/**
+	 * Reads the attributes written by {@link #write(DataOutputStream, Session)}.
+	 * @param in
+	 * @param session
+	 * @throws IOException
+	 */
+	static void read(DataInputStream in, Session session) throws IOException {
+		int size = in.readInt();
+
+		for(int i = 0; i < size; i++) {
+			read(in, (Hash) session);
+		}
+	}
+
+	/**
+	 * Reads one attribute into the hash.
+	 * @param in
+	 * @param hash
+	 * @throws IOException
+	 */
+	static void read(DataInputStream in, Hash hash) throws IOException {
+		String name = in.readUTF();
+		char type = (char) in.readByte();
+
+		switch(type) {
+		case 'J': hash.put(name, in.readLong()); break;
+		case 'I': hash.put(name, in.readInt()); break;
+		case 'S': hash.put(name, in.readShort()); break;
+		case 'B': hash.put(name, in.readByte()); break;
+		case 'Z': hash.put(name, in.readBoolean()); break;
+		case 'T': hash.put(name, new String(bytes(in), "UTF-8")); break;
+		case 'A': hash.put(name, bytes(in)); break;
+		default: throw new IOException("Session type '" + type + "' is unknown.");
+		}
+	}
+
+	/**
+	 * Removes the sessions that timed out while they were only stored 
+	 * here, at most every {@link #SWEEP} milliseconds.
+	 * @param daemon
+	 * @param sessions the ones on the heap are skipped.
+	 * @return the removed sessions.
+	 * @throws IOException
+	 */
+	protected synchronized List expire(Daemon daemon, Sessions sessions) throws IOException {
+		LinkedList list = new LinkedList();
+		long now = System.currentTimeMillis();
+
+		if(timeout == 0 || now - swept < SWEEP) {
+			return list;
+		}
+
+		swept = now;
+
+		for(int i = 0; i < slots; i++) {
+			long offset = index.get(i * 2 + 1);
+
+			if(offset > 0 && now - map.getLong((int) offset + 4) > timeout) {
+				DataInputStream in = record(offset);
+				in.readLong();
+				String key = in.readUTF();
+				String host = in.readUTF();
+
+				if(sessions.peek(host, key) == null) {
+					list.add(session(daemon, host, key, offset));
+				}
+			}
+		}
+
+		Iterator it = list.iterator();
+
+		while(it.hasNext()) {
+			Session session = (Session) it.next();
+			remove(session.host(), session.key());
+		}
+
+		return list;
+	}
+
+	private static byte[] bytes(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+
+	/**
+	 * @param host
+	 * @param key
+	 * @return true if the key is stored.
+	 * @throws IOException
+	 */
+	protected synchronized boolean contains(String host, String key) throws IOException {
+		return slot(hash(host, key), host, key, false) > -1;
+	}
+
+	/**
+	 * Appends the session if it changed since it was stored, or if half
+	 * the timeout has passed so it doesn't expire here while in use.
+	 * Sessions without puts or removes since then are not serialized.
+	 * @param session
+	 * @throws IOException
+	 */
+	protected void save(Session session) throws IOException {
+		String key = session.key();
+		long date = session.date();
+
+		if(key == null || !session.changed() && date - session.saved() < timeout / 2) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(key);
+		out.writeUTF(session.host());
+		out.writeUTF(session.domain() == null ? "" : session.domain());
+		out.writeLong(session.expires());
+		write(out, session);
+
+		byte[] data = bytes.toByteArray();
+		int sum = sum(data);
+
+		if(sum == session.sum() && date - session.saved() < timeout / 2) {
+			session.stored(sum, session.saved());
+			return;
+		}
+
+		synchronized (this) {
+			append(session.host(), key, date, data);
+		}
+
+		session.stored(sum, date);
+	}
+
+	/**
+	 * Writes the String keys with values that can be stored.
+	 * @param out
+	 * @param session
+	 * @throws IOException
+	 */
+	static void write(DataOutputStream out, Session session) throws IOException {
+		LinkedList names = new LinkedList();
+		Iterator it = session.objects().iterator();
+		int slots = session.slots(), count = 0;
+
+		for(int i = 0; i < slots; i++) {
+			if(session.name(i) != null) {
+				count++;
+			}
+		}
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+
+			if(entry.getKey() instanceof String && type(entry.getValue()) != 0) {
+				names.add(entry);
+			}
+		}
+
+		out.writeInt(count + names.size());
+
+		for(int i = 0; i < slots; i++) {
+			if(session.name(i) != null) {
+				write(out, session.name(i), session.type(i), session.value(i));
+			}
+		}
+
+		it = names.iterator();
+
+		while(it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			write(out, (String) entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes one primitive attribute.
+	 * @param out
+	 * @param name
+	 * @param type
+	 * @param value
+	 * @throws IOException
+	 */
+	static void write(DataOutputStream out, String name, char type, long value) throws IOException {
+		out.writeUTF(name);
+		out.writeByte(type);
+
+		switch(type) {
+		case 'J': out.writeLong(value); break;
+		case 'I': out.writeInt((int) value); break;
+		case 'S': out.writeShort((short) value); break;
+		case 'B': out.writeByte((byte) value); break;
+		case 'Z': out.writeBoolean(value != 0); break;
+		}
+	}
+
+	/**
+	 * Writes one attribute.
+	 * @param out
+	 * @param name
+	 * @param value
+	 * @return false if the value can't be stored.
+	 * @throws IOException
+	 */
+	static boolean write(DataOutputStream out, String name, Object value) throws IOException {
+		char type = type(value);
+
+		switch(type) {
+		case 'J': write(out, name, type, ((Long) value).longValue()); break;
+		case 'I': write(out, name, type, ((Integer) value).intValue()); break;
+		case 'S': write(out, name, type, ((Short) value).shortValue()); break;
+		case 'B': write(out, name, type, ((Byte) value).byteValue()); break;
+		case 'Z': write(out, name, type, ((Boolean) value).booleanValue() ? 1 : 0); break;
+		case 'T':
+			out.writeUTF(name);
+			out.writeByte(type);
+			write(out, ((String) value).getBytes("UTF-8"));
+			break;
+		case 'A':
+			out.writeUTF(name);
+			out.writeByte(type);
+			write(out, (byte[]) value);
+			break;
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	static char type(Object value) {
+		if(value instanceof Long) return 'J';
+		if(value instanceof Integer) return 'I';
+		if(value instanceof Short) return 'S';
+		if(value instanceof Byte) return 'B';
+		if(value instanceof Boolean) return 'Z';
+		if(value instanceof String) return 'T';
+		if(value instanceof byte[]) return 'A';
+		return 0;
+	}
+
+	private static void write(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	static int sum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Marks the session as gone, when it times out or changes key.
+	 * @param host
+	 * @param key
+	 * @throws IOException
+	 */
+	protected synchronized void remove(String host, String key) throws IOException {
+		if(key == null || !contains(host, key)) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(key);
+		out.writeUTF(host);
+		out.writeUTF("");
+		out.writeLong(0);
+		out.writeInt(-1);
+
+		write(bytes.toByteArray(), System.currentTimeMillis());
+		unlink(hash(host, key), host, key);
+	}
+
+	private void append(String host, String key, long date, byte[] data) throws IOException {
+		long offset = write(data, date);
+		link(hash(host, key), host, key, offset);
+	}
+
+	/*
+	 * The length is written last, so a record cut short by a crash
+	 * ends the log.
+	 */
+	private long write(byte[] data, long date) throws IOException {
+		int length = 4 + 8 + data.length;
+
+		if(end + length + 4 > map.capacity()) {
+			compact(length);
+		}
+
+		long offset = end;
+		ByteBuffer buffer = map.duplicate();
+		buffer.position((int) offset + 4);
+		buffer.putLong(date);
+		buffer.put(data);
+		buffer.putInt(0);
+		map.putInt((int) offset, length);
+		end += length;
+
+		return offset;
+	}
+
+	/*
+	 * Copies the live records to a new file and maps it instead.
+	 */
+	private void compact(int length) throws IOException {
+		long size = map.capacity();
+
+		while(live + length + 12 > size / 2) {
+			size *= 2;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		LongBuffer old = index;
+		MappedByteBuffer from = map;
+		RandomAccessFile was = raf;
+		int slots = this.slots;
+
+		temp.delete();
+		map(temp, size);
+		map.putInt(0, MAGIC);
+		map.putInt(4, 1);
+		end = 8;
+		index(slots);
+
+		for(int i = 0; i < slots; i++) {
+			long offset = old.get(i * 2 + 1);
+
+			if(offset > 0) {
+				int copy = from.getInt((int) offset);
+				ByteBuffer record = from.duplicate();
+				record.position((int) offset);
+				record.limit((int) offset + copy);
+
+				ByteBuffer buffer = map.duplicate();
+				buffer.position((int) end);
+				buffer.put(record);
+
+				DataInputStream in = record(end);
+				in.readLong();
+				String key = in.readUTF();
+				link(old.get(i * 2), in.readUTF(), key, end);
+				end += copy;
+			}
+		}
+
+		map.force();
+		was.close();
+
+		/* Atomic, so a crash leaves either the old vault or the new one. */
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Writes the file to disk.
+	 */
+	protected synchronized void close() throws IOException {
+		map.force();
+		raf.close();
+	}
+
+	public File file() {
+		return file;
+	}
+
+	public String toString() {
+		synchronized (this) {
+			return "sessions: " + count + ", bytes: " + live + "/" + end + "/" + map.capacity();
+		}
+	}
+}